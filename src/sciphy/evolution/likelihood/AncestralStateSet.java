@@ -0,0 +1,107 @@
+package sciphy.evolution.likelihood;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Set of possible ancestral states at a node.
+ * Because sciphy sequences record ordered edits, the possible ancestors of a sequence are exactly its prefixes
+ * (the first k edits followed by unedited sites). The set is therefore fully described by a reference sequence and
+ * the length of the longest prefix of that reference which is still a possible ancestral state.
+ * States are identified by their prefix length, from 0 (unedited barcode) to maxPrefixLength.
+ */
+public class AncestralStateSet {
+
+    /**
+     * node number of the leaf whose sequence is the reference of this set
+     */
+    protected int referenceNr;
+    protected int[] referenceSequence;
+    protected int maxPrefixLength;
+
+    public AncestralStateSet(int referenceNr, int[] referenceSequence, int maxPrefixLength) {
+        this.referenceNr = referenceNr;
+        this.referenceSequence = referenceSequence;
+        this.maxPrefixLength = maxPrefixLength;
+    }
+
+    /**
+     * Construct the intersection of two ancestral state sets. Shared ancestors are the shared prefixes, so the
+     * intersection is given by the longest common prefix of both references, bounded by the maximal prefix length of
+     * each set. This is O(arrayLength).
+     */
+    public static AncestralStateSet intersection(AncestralStateSet set1, AncestralStateSet set2) {
+
+        int maxLength = Math.min(set1.maxPrefixLength, set2.maxPrefixLength);
+        int commonPrefixLength = 0;
+        while (commonPrefixLength < maxLength
+                && set1.referenceSequence[commonPrefixLength] == set2.referenceSequence[commonPrefixLength]) {
+            commonPrefixLength++;
+        }
+        return new AncestralStateSet(set1.referenceNr, set1.referenceSequence, commonPrefixLength);
+    }
+
+    public int getReferenceNr() {
+        return referenceNr;
+    }
+
+    public int[] getReferenceSequence() {
+        return referenceSequence;
+    }
+
+    public int getMaxPrefixLength() {
+        return maxPrefixLength;
+    }
+
+    /**
+     * @return number of possible ancestral states in the set
+     */
+    public int size() {
+        return maxPrefixLength + 1;
+    }
+
+    /**
+     * @return the state with the given prefix length, as a sciphy barcode
+     */
+    public List<Integer> getState(int prefixLength) {
+
+        List<Integer> state = new ArrayList<>(referenceSequence.length);
+        for (int i = 0; i < referenceSequence.length; i++) {
+            state.add(i < prefixLength ? referenceSequence[i] : 0);
+        }
+        return state;
+    }
+
+    /**
+     * @return all states in the set, indexed by prefix length
+     */
+    public List<List<Integer>> getStates() {
+
+        List<List<Integer>> states = new ArrayList<>(size());
+        for (int prefixLength = 0; prefixLength <= maxPrefixLength; prefixLength++) {
+            states.add(getState(prefixLength));
+        }
+        return states;
+    }
+
+    public boolean contains(List<Integer> state) {
+
+        if (state.size() != referenceSequence.length) {
+            return false;
+        }
+        // a state is in the set if it is a prefix of the reference that is not longer than the maximal prefix
+        int prefixLength = 0;
+        while (prefixLength < state.size() && state.get(prefixLength) != 0) {
+            if (prefixLength >= maxPrefixLength || state.get(prefixLength) != referenceSequence[prefixLength]) {
+                return false;
+            }
+            prefixLength++;
+        }
+        for (int i = prefixLength; i < state.size(); i++) {
+            if (state.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,388 @@
+package sciphy.evolution.likelihood;
+
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.sitemodel.SiteModelInterface;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+@Description("tree likelihood for several independent SciPhy barcodes on the same tree, with shared site model and " +
+        "branch rate model. The tree traversal, dirty flags and per branch poisson probabilities are shared by all " +
+        "barcodes, whose partials are calculated in parallel.")
+
+public class MultiBarcodeTreeLikelihood extends Distribution {
+
+    final public Input<List<Alignment>> dataInput = new Input<>("data", "SciPhy alignments, one per barcode",
+            new ArrayList<>());
+
+    final public Input<TreeInterface> treeInput = new Input<>("tree", "phylogenetic beast.tree shared by all barcodes",
+            Validate.REQUIRED);
+
+    final public Input<SiteModelInterface> siteModelInput = new Input<>("siteModel", "site model shared by all barcodes",
+            Validate.REQUIRED);
+
+    final public Input<BranchRateModel.Base> branchRateModelInput = new Input<>("branchRateModel",
+            "A model describing the rates on the branches of the beast.tree.");
+
+    final public Input<RealParameter> originTimeInput = new Input<>("origin", "Duration of the experiment");
+
+    final public Input<IntegerParameter> arrayLengthInput = new Input<>("arrayLength", "Number of positions in the target " +
+            "BC, either one value for all barcodes or one per barcode. Defaults to the number of sites of each alignment");
+
+    final public Input<Boolean> useScalingInput = new Input<Boolean>("useScaling", "Whether or not to scale the log likelihood", false,
+            Validate.OPTIONAL);
+
+    final public Input<Boolean> useLogPartialsInput = new Input<Boolean>("useLogPartials", "Whether or not to calculate " +
+            "partial likelihoods in log space, which cannot underflow on large trees. Scaling is not used then", false,
+            Validate.OPTIONAL);
+
+    final public Input<Integer> poissonCacheSizeInput = new Input<Integer>("poissonCacheSize", "maximum number of branch " +
+            "distances whose poisson probabilities are cached, which pays off when few branch lengths change per step, " +
+            "e.g. with a fixed tree, 0 for no cache (default 0)", 0);
+
+    final public Input<Integer> maxNrOfThreadsInput = new Input<>("threads", "maximum number of threads to use, if " +
+            "less than 1 the number of threads of BEAST is used (default -1)", -1);
+
+    protected List<SciPhyTreeLikelihood> barcodeLikelihoods;
+    protected double[] barcodeLogLikelihoods;
+
+    protected BranchRateModel.Base branchRateModel;
+    protected SiteModel.Base m_siteModel;
+    protected double originTime;
+    protected int nodeCount;
+    protected int categoryCount;
+
+    /**
+     * flag to indicate the dirtiness of the shared calculations, see SciPhyTreeLikelihood
+     */
+    protected int hasDirt;
+
+    /**
+     * true if the last evaluation returned before the shared traversal, see SciPhyTreeLikelihood
+     */
+    protected boolean traversalSkipped;
+    protected boolean storedTraversalSkipped;
+
+    protected double[] m_branchLengths;
+    protected double[] storedBranchLengths;
+
+    /**
+     * internal nodes in post-order and their update flags, as found by the shared traversal, and the update flags
+     * passed on to parents
+     */
+    protected Node[] internalNodes;
+    protected int nrOfInternalNodes;
+    protected int[] nodeUpdates;
+    protected int[] traversalUpdates;
+
+    /**
+     * poisson probabilities per branch and rate category, shared by all barcodes, see SciPhyTreeLikelihood
+     */
+    protected double[][][] poissonProbabilities;
+    protected double[][][] absorbingStateProbabilities;
+
+    protected ExecutorService executor;
+    protected List<Callable<Object>> barcodeCallers;
+
+
+    @Override
+    public void initAndValidate() {
+
+        List<Alignment> alignments = dataInput.get();
+        if (alignments.isEmpty()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid data input: at least one alignment is required"));
+        }
+        IntegerParameter arrayLengths = arrayLengthInput.get();
+        if (arrayLengths != null && arrayLengths.getDimension() != 1 && arrayLengths.getDimension() != alignments.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid array length: provide either one value, or one value per alignment (%d)", alignments.size()));
+        }
+
+        TreeInterface tree = treeInput.get();
+        nodeCount = tree.getNodeCount();
+        m_siteModel = (SiteModel.Base) siteModelInput.get();
+        categoryCount = m_siteModel.getCategoryCount();
+
+        if (branchRateModelInput.get() != null) {
+            branchRateModel = branchRateModelInput.get();
+        } else {
+            branchRateModel = new StrictClockModel();
+        }
+        originTime = 0.0;
+        if (originTimeInput.get() != null) {
+            originTime = originTimeInput.get().getValue();
+        }
+
+        int[] barcodeArrayLengths = new int[alignments.size()];
+        int maxArrayLength = 0;
+        for (int i = 0; i < alignments.size(); i++) {
+            barcodeArrayLengths[i] = alignments.get(i).getSiteCount();
+            if (arrayLengths != null) {
+                barcodeArrayLengths[i] = arrayLengths.getValue(arrayLengths.getDimension() == 1 ? 0 : i);
+            }
+            maxArrayLength = Math.max(maxArrayLength, barcodeArrayLengths[i]);
+        }
+
+        // tables for the longest array hold the probabilities for all barcodes; they are filled by the first barcode,
+        // which is the only one that needs a cache
+        poissonProbabilities = new double[nodeCount][categoryCount][maxArrayLength + 1];
+        absorbingStateProbabilities = new double[nodeCount][categoryCount][maxArrayLength + 1];
+
+        // each barcode is calculated by its own likelihood, whose store/restore is handled here
+        barcodeLikelihoods = new ArrayList<>();
+        for (int i = 0; i < alignments.size(); i++) {
+            List<Object> arguments = new ArrayList<>(Arrays.asList("data", alignments.get(i), "tree", tree,
+                    "siteModel", m_siteModel, "branchRateModel", branchRateModel,
+                    "arrayLength", new IntegerParameter(String.valueOf(barcodeArrayLengths[i])),
+                    "useScaling", useScalingInput.get(), "useLogPartials", useLogPartialsInput.get(),
+                    "poissonCacheSize", i == 0 ? poissonCacheSizeInput.get() : 0));
+            if (originTimeInput.get() != null) {
+                arguments.add("origin");
+                arguments.add(originTimeInput.get());
+            }
+            SciPhyTreeLikelihood barcodeLikelihood = new SciPhyTreeLikelihood();
+            barcodeLikelihood.setBranchProbabilities(poissonProbabilities, absorbingStateProbabilities);
+            barcodeLikelihood.initByName(arguments.toArray());
+            barcodeLikelihoods.add(barcodeLikelihood);
+        }
+        barcodeLogLikelihoods = new double[barcodeLikelihoods.size()];
+
+        m_branchLengths = new double[nodeCount];
+        storedBranchLengths = new double[nodeCount];
+        internalNodes = new Node[tree.getInternalNodeCount()];
+        nodeUpdates = new int[nodeCount];
+        traversalUpdates = new int[nodeCount];
+
+        hasDirt = Tree.IS_FILTHY;
+
+        initThreads();
+    }
+
+    /**
+     * Split the barcodes in contiguous blocks, one per thread.
+     */
+    protected void initThreads() {
+
+        int threadCount = maxNrOfThreadsInput.get() > 0 ? maxNrOfThreadsInput.get() : ProgramStatus.m_nThreads;
+        threadCount = Math.max(1, Math.min(threadCount, barcodeLikelihoods.size()));
+
+        barcodeCallers = new ArrayList<>();
+        int blockSize = (barcodeLikelihoods.size() + threadCount - 1) / threadCount;
+        for (int from = 0; from < barcodeLikelihoods.size(); from += blockSize) {
+            final int start = from;
+            final int end = Math.min(from + blockSize, barcodeLikelihoods.size());
+            barcodeCallers.add(() -> {
+                calculateBarcodeLogLikelihoods(start, end);
+                return null;
+            });
+        }
+
+        if (barcodeCallers.size() > 1) {
+            executor = Executors.newFixedThreadPool(barcodeCallers.size(), runnable -> {
+                Thread thread = new Thread(runnable, "sciphy-barcode-likelihood");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public List<SciPhyTreeLikelihood> getBarcodeLikelihoods() {
+        return barcodeLikelihoods;
+    }
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+    }
+
+    @Override
+    public double calculateLogP() {
+        final TreeInterface tree = treeInput.get();
+
+        // the cheap feasibility check of all barcodes comes before the shared traversal
+        for (SciPhyTreeLikelihood barcodeLikelihood : barcodeLikelihoods) {
+            if (barcodeLikelihood.updateLeafInsertProbabilities) {
+                barcodeLikelihood.updateLeafInsertProbabilities();
+            }
+            if (!barcodeLikelihood.isFeasible(tree)) {
+                traversalSkipped = true;
+                logP = Double.NEGATIVE_INFINITY;
+                return logP;
+            }
+        }
+        if (traversalSkipped) {
+            hasDirt |= Tree.IS_FILTHY;
+            traversalSkipped = false;
+        }
+
+        // a single traversal finds the nodes to update and fills the poisson probabilities of their child branches
+        barcodeLikelihoods.get(0).updateCategoryRates();
+        traverse(tree);
+        if (originTime != 0.0) {
+            barcodeLikelihoods.get(0).updateBranchProbabilities(tree.getRoot());
+        }
+
+        if (executor == null) {
+            calculateBarcodeLogLikelihoods(0, barcodeLikelihoods.size());
+        } else {
+            try {
+                for (Future<Object> future : executor.invokeAll(barcodeCallers)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        logP = 0.0;
+        for (double barcodeLogLikelihood : barcodeLogLikelihoods) {
+            logP += barcodeLogLikelihood;
+        }
+        return logP;
+    }
+
+    protected void calculateBarcodeLogLikelihoods(int from, int to) {
+        for (int i = from; i < to; i++) {
+            barcodeLogLikelihoods[i] = barcodeLikelihoods.get(i).calculateLogP(internalNodes, nrOfInternalNodes, nodeUpdates);
+        }
+    }
+
+    /**
+     * @return the cache of the shared branch poisson probabilities, or null if there is no cache
+     */
+    public PoissonProbabilityCache getPoissonProbabilityCache() {
+        return barcodeLikelihoods.get(0).getPoissonProbabilityCache();
+    }
+
+    /**
+     * This implements a postorder traversal of the tree, recording the update flag of every internal node, as in
+     * SciPhyTreeLikelihood.traverse, and updating the poisson probabilities of the branches below updated nodes.
+     * The post-order schedule is the one of the first barcode, which stores and restores it.
+     */
+    protected void traverse(TreeInterface tree) {
+
+        SciPhyTreeLikelihood scheduleLikelihood = barcodeLikelihoods.get(0);
+        scheduleLikelihood.updateSchedule(tree);
+        int[] postOrderNodeNrs = scheduleLikelihood.postOrderNodeNrs;
+        int[] leftChildNrs = scheduleLikelihood.leftChildNrs;
+        int[] rightChildNrs = scheduleLikelihood.rightChildNrs;
+
+        Node[] nodes = tree.getNodesAsArray();
+        nrOfInternalNodes = 0;
+
+        for (int i = 0; i < nodeCount; i++) {
+
+            int nodeNr = postOrderNodeNrs[i];
+            Node node = nodes[nodeNr];
+            int update = (node.isDirty() | hasDirt);
+
+            // all nodes but the root, which is last
+            if (i < nodeCount - 1) {
+                final double branchTime = node.getLength() * branchRateModel.getRateForBranch(node);
+                if (update != Tree.IS_CLEAN || branchTime != m_branchLengths[nodeNr]) {
+                    m_branchLengths[nodeNr] = branchTime;
+                    update |= Tree.IS_DIRTY;
+                }
+            }
+
+            nodeUpdates[nodeNr] = Tree.IS_CLEAN;
+
+            final int child1Nr = leftChildNrs[nodeNr];
+            final int child2Nr = rightChildNrs[nodeNr];
+
+            if (child1Nr >= 0) {
+
+                // If either child node was updated then update this node too
+                if (traversalUpdates[child1Nr] != Tree.IS_CLEAN || traversalUpdates[child2Nr] != Tree.IS_CLEAN) {
+
+                    update |= (traversalUpdates[child1Nr] | traversalUpdates[child2Nr]);
+
+                    scheduleLikelihood.updateBranchProbabilities(child1Nr, m_branchLengths[child1Nr]);
+                    scheduleLikelihood.updateBranchProbabilities(child2Nr, m_branchLengths[child2Nr]);
+                    nodeUpdates[nodeNr] = update;
+                }
+                internalNodes[nrOfInternalNodes++] = node;
+            }
+
+            traversalUpdates[nodeNr] = update;
+        }
+    }
+
+
+    /**
+     * check state for changed variables and update temp results if necessary *
+     */
+    @Override
+    protected boolean requiresRecalculation() {
+
+        boolean requiresRecalculation = false;
+        hasDirt = Tree.IS_CLEAN;
+
+        // barcodes check their own data and the shared models; a change for any barcode dirties the shared traversal,
+        // so that the branch probabilities are up to date for all nodes it recalculates
+        for (SciPhyTreeLikelihood barcodeLikelihood : barcodeLikelihoods) {
+            if (barcodeLikelihood.requiresRecalculation()) {
+                requiresRecalculation = true;
+            }
+            hasDirt |= barcodeLikelihood.hasDirt;
+        }
+        return requiresRecalculation;
+    }
+
+    @Override
+    public void store() {
+
+        super.store();
+        System.arraycopy(m_branchLengths, 0, storedBranchLengths, 0, m_branchLengths.length);
+        storedTraversalSkipped = traversalSkipped;
+        for (SciPhyTreeLikelihood barcodeLikelihood : barcodeLikelihoods) {
+            barcodeLikelihood.store();
+        }
+    }
+
+    @Override
+    public void restore() {
+
+        super.restore();
+        double[] tmp = m_branchLengths;
+        m_branchLengths = storedBranchLengths;
+        storedBranchLengths = tmp;
+        traversalSkipped = storedTraversalSkipped;
+        for (SciPhyTreeLikelihood barcodeLikelihood : barcodeLikelihoods) {
+            barcodeLikelihood.restore();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package sciphy.evolution.likelihood;
+
+import sciphy.evolution.substitutionmodel.SciPhySubstitutionModel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least recently used cache of the poisson probabilities of k edits and of at least k edits on a branch,
+ * keyed by evolutionary distance. The same distances come up again across nodes (e.g. with a strict clock and
+ * internal nodes at fixed heights) and across MCMC steps (e.g. when a proposal is rejected and the branch probabilities
+ * are refilled for the restored distance).
+ * Distances are compared exactly, so that cached probabilities are the ones that would have been calculated.
+ */
+public class PoissonProbabilityCache {
+
+    protected final int maxSize;
+    protected final LinkedHashMap<Double, double[][]> cache;
+
+    protected long hits;
+    protected long misses;
+
+    public PoissonProbabilityCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(String.format("Cache size has to be positive, not %d", maxSize));
+        }
+        this.maxSize = maxSize;
+        // access order makes the eldest entry the least recently used
+        this.cache = new LinkedHashMap<Double, double[][]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Double, double[][]> eldest) {
+                return size() > PoissonProbabilityCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Fill the poisson probabilities of k = 0, ..., poissonProbabilities.length - 1 edits and of at least k edits for
+     * a distance, from the cache if possible, see SciPhySubstitutionModel.getPoissonProbabilities.
+     */
+    public void getPoissonProbabilities(double distance, double[] poissonProbabilities, double[] absorbingStateProbabilities) {
+
+        double[][] probabilities = cache.get(distance);
+
+        if (probabilities != null && probabilities[0].length == poissonProbabilities.length) {
+            hits++;
+        } else {
+            misses++;
+            probabilities = new double[2][poissonProbabilities.length];
+            SciPhySubstitutionModel.getPoissonProbabilities(distance, probabilities[0], probabilities[1]);
+            cache.put(distance, probabilities);
+        }
+        System.arraycopy(probabilities[0], 0, poissonProbabilities, 0, poissonProbabilities.length);
+        System.arraycopy(probabilities[1], 0, absorbingStateProbabilities, 0, absorbingStateProbabilities.length);
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+}
@@ -2,15 +2,19 @@ package sciphy.evolution.likelihood;
 
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import beast.base.core.Description;
 import beast.base.core.Log;
+import beast.base.core.ProgramStatus;
 import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.State;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.branchratemodel.BranchRateModel;
 import beast.base.evolution.branchratemodel.StrictClockModel;
 import beast.base.evolution.sitemodel.SiteModel;
@@ -33,6 +37,26 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     final public Input<Boolean> useScalingInput = new Input<Boolean>("useScaling", "Whether or not to scale the log likelihood", false,
             Validate.OPTIONAL);
 
+    final public Input<Boolean> useLogPartialsInput = new Input<Boolean>("useLogPartials", "Whether or not to calculate " +
+            "partial likelihoods in log space, which cannot underflow on large trees. Scaling is not used then", false,
+            Validate.OPTIONAL);
+
+    final public Input<Boolean> fixedTopologyInput = new Input<Boolean>("fixedTopology", "Whether the tree topology is " +
+            "fixed, in which case ancestral states are calculated once and the partials of all internal nodes are " +
+            "recalculated at every step. This only saves the update of the ancestral states, the partials cost as " +
+            "much as with a changing topology (default false)", false);
+
+    final public Input<Integer> poissonCacheSizeInput = new Input<Integer>("poissonCacheSize", "maximum number of branch " +
+            "distances whose poisson probabilities are cached, which pays off when few branch lengths change per step, " +
+            "e.g. with a fixed tree, 0 for no cache (default 0)", 0);
+
+    final public Input<Integer> maxNrOfThreadsInput = new Input<>("threads", "maximum number of threads used to " +
+            "calculate the partials of nodes at the same depth in parallel, if less than 1 the number of threads of " +
+            "BEAST is used (default 1, no threading)", 1);
+
+    final public Input<Integer> minWaveSizeInput = new Input<>("minWaveSize", "minimum number of nodes at the same " +
+            "depth to update for their partials to be calculated in parallel (default 256)", 256);
+
     protected SciPhySubstitutionModel substitutionModel;
     protected BranchRateModel.Base branchRateModel;
     protected SiteModel.Base m_siteModel;
@@ -61,14 +85,36 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     protected double[] m_branchLengths;
     protected double[] storedBranchLengths;
 
-    //to be able to have current/stored states in an analog way to the partials array, ancestral states are accessed/added
-    //states with key being the hashcode of: nodeIndex + currentStatesIndex[nodeIndex] + nodeIndex
-    public Hashtable<Integer, List<List<Integer>>> ancestralStates;
-    public double[][][] partialLikelihoods;
+    //current/stored ancestral states are kept in an analog way to the partials array, indexed by
+    //[currentStatesIndex[nodeIndex]][nodeIndex]
+    //partial likelihoods of a node are indexed by rate category and by the prefix length of the corresponding ancestral
+    //state, [currentPartialsIndex[nodeIndex]][nodeIndex][categoryId][prefixLength]. Buffers are allocated once for all
+    //arrayLength + 1 prefixes and only the first getAncestralStates(nodeIndex).size() are in use
+    public AncestralStateSet[][] ancestralStates;
+    public double[][][][] partialLikelihoods;
+    /**
+     * prefix lengths of the non-zero partials of each internal node and rate category, in decreasing order, indexed
+     * like the partials, so that sums over the states of a child only run over the support of its partials
+     */
+    protected int[][][][] nonZeroStates;
+    protected int[][][] nrOfNonZeroStates;
     public double[] categoryLogLikelihoods;
-    protected double[][] scalingFactors;
+    protected int categoryCount;
+    protected double[][][] scalingFactors;
+    /**
+     * log scaling factors summed over the subtree below each node, double buffered like the partials, so that
+     * the total at the root only needs updating along the paths of recomputed nodes
+     */
+    protected double[][][] subtreeScalingFactors;
     protected boolean useScaling = false;
 
+    /**
+     * in log space, partial likelihoods hold log values and sums over states are calculated with logSum on logTerms,
+     * one buffer per thread calculating partials
+     */
+    protected boolean useLogPartials = false;
+    protected ThreadLocal<double[]> logTerms;
+
 
     private double scalingThreshold = 1.0E-100;
 
@@ -78,6 +124,88 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     protected int[] currentStatesIndex;
     protected int[] storedStatesIndex;
 
+    /**
+     * observed sequence of each leaf, its prefixes are its possible ancestral states
+     */
+    protected int[][] leafSequences;
+
+    /**
+     * cumulative log insert probabilities along the sequence of each leaf, indexed by prefix length, so that the
+     * probability of the inserts between two prefixes is the difference of two entries. Inserts with probability 0
+     * are left out of the sums and counted separately, to avoid differences of infinite values.
+     * These only change with the edit probabilities.
+     */
+    protected double[][] leafLogInsertProbabilities;
+    protected int[][] leafImpossibleInserts;
+    protected boolean updateLeafInsertProbabilities;
+    protected boolean leafInsertProbabilitiesChanged;
+
+    /**
+     * longest prefix shared by all leaves, which is the largest possible ancestral state at the root whatever the
+     * topology, and whether some leaf has an insert with probability 0 after it (or at all), in which case the
+     * likelihood is 0 (with origin)
+     */
+    protected int commonLeafPrefixLength;
+    protected boolean impossibleInsertsBelowRoot;
+    protected boolean impossibleInserts;
+
+    /**
+     * true if the last evaluation returned before the traversal, so that partials of dirty nodes are outdated
+     */
+    protected boolean traversalSkipped;
+    protected boolean storedTraversalSkipped;
+
+    /**
+     * post-order schedule of the traversals: node numbers in post-order, with the root last, and the children of each
+     * node (-1 for leaves). It is rebuilt without recursion when the topology changes, see updateSchedule, and
+     * traversals are flat loops over it. Node numbers are used because the tree swaps node objects on restore.
+     * With a fixed topology, the schedule is built once.
+     */
+    protected int[] postOrderNodeNrs;
+    protected int[] leftChildNrs;
+    protected int[] rightChildNrs;
+    protected int[] scheduleStack;
+    protected boolean rebuildSchedule;
+    protected boolean scheduleChanged;
+    protected boolean fixedTopology;
+
+    /**
+     * update flags of all nodes in the last traversal
+     */
+    protected int[] nodeUpdates;
+
+    /**
+     * with threads, internal nodes are grouped in waves by depth (the number of edges on the longest path to a leaf),
+     * so that nodes of a wave only depend on nodes of earlier waves. Traversals record the update flags of the nodes
+     * to recalculate (IS_CLEAN for the others) and waves of at least minWaveSize such nodes are calculated on the
+     * partialsPool.
+     */
+    protected ForkJoinPool partialsPool;
+    protected int minWaveSize;
+    protected int[] nodeDepths;
+    protected int[] waveNodeNrs;
+    protected int[] waveStarts;
+    protected int nrOfWaves;
+    protected int[] scheduledUpdates;
+    protected int[] waveUpdateNodeNrs;
+
+    /**
+     * poisson probabilities of k edits and of at least k edits (absorbing state) on the branch above each node, for
+     * k = 0, ..., arrayLength, filled once for the branch and rate category before calculating the partials
+     */
+    protected double[][][] poissonProbabilities;
+    protected double[][][] absorbingStateProbabilities;
+    protected PoissonProbabilityCache poissonProbabilityCache;
+
+    /**
+     * branch times (scaled by the branch rate) and category rates the poisson probabilities were filled for. Tables
+     * only depend on these, so they are refilled when the evolutionary distance of a branch changes, and not e.g.
+     * when only the edit probabilities change. As they describe the actual content of the tables, they are not
+     * affected by store/restore.
+     */
+    protected double[] branchProbabilityTimes;
+    protected double[] branchProbabilityCategoryRates;
+
 
     @Override
     public void initAndValidate() {
@@ -92,7 +220,8 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
                     "Invalid tree input: single node/branch. Ensure that #nodes>2 "));
         }
         m_siteModel = (SiteModel.Base) siteModelInput.get();
-        categoryLogLikelihoods = new double[m_siteModel.getCategoryCount()];
+        categoryCount = m_siteModel.getCategoryCount();
+        categoryLogLikelihoods = new double[categoryCount];
         m_siteModel.setDataType(dataInput.get().getDataType());
         substitutionModel = (SciPhySubstitutionModel) m_siteModel.substModelInput.get();
 
@@ -100,8 +229,10 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
         storedBranchLengths = new double[nodeCount];
 
         //TODO check that state count from alignment (i.e. data type) and substitution model are the same
-        ancestralStates = new Hashtable<>();
-        partialLikelihoods = new double[2][nodeCount][];
+        ancestralStates = new AncestralStateSet[2][nodeCount];
+        partialLikelihoods = new double[2][nodeCount][categoryCount][arrayLength + 1];
+        nonZeroStates = new int[2][nodeCount][categoryCount][arrayLength + 1];
+        nrOfNonZeroStates = new int[2][nodeCount][categoryCount];
 
         currentPartialsIndex = new int[nodeCount];
         storedPartialsIndex = new int[nodeCount];
@@ -123,17 +254,64 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
             }
         }
 
-        if (useScalingInput.get()) {
+        // tables passed in by setBranchProbabilities before initialisation are shared, not allocated
+        if (poissonProbabilities == null || poissonProbabilities.length != nodeCount
+                || poissonProbabilities[0].length != categoryCount || poissonProbabilities[0][0].length < arrayLength + 1) {
+            poissonProbabilities = new double[nodeCount][categoryCount][arrayLength + 1];
+            absorbingStateProbabilities = new double[nodeCount][categoryCount][arrayLength + 1];
+        }
+        branchProbabilityTimes = new double[nodeCount];
+        branchProbabilityCategoryRates = new double[categoryCount];
+        Arrays.fill(branchProbabilityTimes, Double.NaN);
+
+        fixedTopology = fixedTopologyInput.get();
+        postOrderNodeNrs = new int[nodeCount];
+        leftChildNrs = new int[nodeCount];
+        rightChildNrs = new int[nodeCount];
+        scheduleStack = new int[nodeCount];
+        nodeUpdates = new int[nodeCount];
+        rebuildSchedule = true;
+
+        int threadCount = maxNrOfThreadsInput.get() > 0 ? maxNrOfThreadsInput.get() : ProgramStatus.m_nThreads;
+        if (threadCount > 1) {
+            partialsPool = new ForkJoinPool(threadCount);
+            minWaveSize = Math.max(1, minWaveSizeInput.get());
+            nodeDepths = new int[nodeCount];
+            waveNodeNrs = new int[nodeCount];
+            waveStarts = new int[nodeCount + 1];
+            scheduledUpdates = new int[nodeCount];
+            waveUpdateNodeNrs = new int[nodeCount];
+        }
+
+        if (poissonCacheSizeInput.get() > 0) {
+            poissonProbabilityCache = new PoissonProbabilityCache(poissonCacheSizeInput.get());
+        }
+
+        if (useLogPartialsInput.get()) {
+            useLogPartials = true;
+            logTerms = ThreadLocal.withInitial(() -> new double[this.arrayLength + 1]);
+            if (useScalingInput.get()) {
+                Log.warning.println("SciPhyTreeLikelihood: partials are calculated in log space, useScaling is ignored");
+            }
+        } else if (useScalingInput.get()) {
             useScaling = true;
-            scalingFactors = new double[2][nodeCount];
+            scalingFactors = new double[2][nodeCount][categoryCount];
+            subtreeScalingFactors = new double[2][nodeCount][categoryCount];
         }
 
 
         hasDirt = Tree.IS_FILTHY;
 
+        leafSequences = new int[treeInput.get().getLeafNodeCount()][];
+        leafLogInsertProbabilities = new double[treeInput.get().getLeafNodeCount()][];
+        leafImpossibleInserts = new int[treeInput.get().getLeafNodeCount()][];
+        AncestralStateSet commonLeafAncestors = null;
         for (int i = 0; i < treeInput.get().getLeafNodeCount(); i++) {
             initLeafAncestors(i);
+            commonLeafAncestors = i == 0 ? getAncestralStates(i) : AncestralStateSet.intersection(commonLeafAncestors, getAncestralStates(i));
         }
+        commonLeafPrefixLength = commonLeafAncestors.getMaxPrefixLength();
+        updateLeafInsertProbabilities();
 
         for (int i = 0; i < treeInput.get().getLeafNodeCount(); i++) {
             initLeafPartials(i);
@@ -163,28 +341,129 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     public double calculateLogP() {
         final TreeInterface tree = treeInput.get();
 
-        if(originTime != 0.0) {
-            if (tree.getRoot().getHeight() >= originTime) {
-                return Double.NEGATIVE_INFINITY;
+        if (updateLeafInsertProbabilities) {
+            updateLeafInsertProbabilities();
+        }
+        if (traversalSkipped) {
+            //nodes that were dirty when the traversal was skipped have to be updated too
+            hasDirt |= Tree.IS_FILTHY;
+        }
+
+        //cheap pre-pass over the ancestral states, so that trees with likelihood 0 are found before any partials
+        //with a fixed topology, ancestral states never change after the first evaluation, or after everything was
+        //made dirty (e.g. on resume), which makes all nodes filthy
+        if (!fixedTopology || rebuildSchedule || hasDirt == Tree.IS_FILTHY) {
+            updateSchedule(tree);
+            traverseStates(tree);
+        }
+        traversalSkipped = !isFeasible(tree);
+        if (traversalSkipped) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        updateCategoryRates();
+
+        //a single traversal updates the partials of all rate categories
+        if (fixedTopology) {
+            updateFixedTopologyPartials(tree);
+        } else {
+            traverse(tree);
+        }
+
+        if (originTime != 0.0) {
+            updateBranchProbabilities(tree.getRoot());
+        }
+
+        logP = calculateRootLogLikelihood(tree.getRoot());
+        return logP;
+    }
+
+    /**
+     * Calculate the log likelihood from the partials of a traversal shared by several barcodes on the same tree, see
+     * MultiBarcodeTreeLikelihood. Internal nodes are given in post-order with their update flags, and the branch
+     * probabilities are expected to be up to date for all updated nodes.
+     */
+    protected double calculateLogP(Node[] internalNodes, int nrOfInternalNodes, int[] nodeUpdates) {
+
+        if (updateLeafInsertProbabilities) {
+            updateLeafInsertProbabilities();
+        }
+
+        for (int i = 0; i < nrOfInternalNodes; i++) {
+            int update = nodeUpdates[internalNodes[i].getNr()] | hasDirt;
+            if (update >= Tree.IS_FILTHY) {
+                updateStates(internalNodes[i]);
+            }
+        }
+        for (int i = 0; i < nrOfInternalNodes; i++) {
+            int update = nodeUpdates[internalNodes[i].getNr()] | hasDirt;
+            if (update != Tree.IS_CLEAN) {
+                updateNode(internalNodes[i], update);
             }
         }
 
-        for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
-            //adjust clock rate for the given category
-            traverse(tree.getRoot(), i);
+        logP = calculateRootLogLikelihood(treeInput.get().getRoot());
+        return logP;
+    }
+
+    /**
+     * Cheap check for a likelihood of 0 before any partials are calculated. Ancestral states are prefixes, so sibling
+     * clades always share at least the unedited state and the topology cannot make the likelihood 0. This leaves the
+     * origin being below the root, and leaf inserts with probability 0 that cannot be placed above the root, that is
+     * outside the prefix shared by all leaves (or anywhere if the root descends from the unedited origin).
+     *
+     * @return false if the likelihood is 0
+     */
+    protected boolean isFeasible(TreeInterface tree) {
+
+        if (originTime != 0.0) {
+            return tree.getRoot().getHeight() < originTime && !impossibleInserts;
+        }
+        return !impossibleInsertsBelowRoot;
+    }
+
+    /**
+     * Calculate the log likelihood, averaged over rate categories, from the partials at the root.
+     */
+    protected double calculateRootLogLikelihood(Node root) {
+
+        for (int i = 0; i < categoryCount; i++) {
 
-            if (originTime == 0.0) {
+            if (useLogPartials) {
+                categoryLogLikelihoods[i] = calculateRootLogPartial(root, i);
+            } else if (originTime == 0.0) {
                 //sum of all partial likelihoods at the root
-                int rootNr = tree.getRoot().getNr();
-                categoryLogLikelihoods[i] = Math.log(Arrays.stream(partialLikelihoods[currentPartialsIndex[rootNr]][rootNr]).sum()) + getLogScalingFactor();
+                int rootNr = root.getNr();
+                double[] rootPartials = partialLikelihoods[currentPartialsIndex[rootNr]][rootNr][i];
+                double rootLikelihood = 0.0;
+                for (int k = 0; k < getAncestralStates(rootNr).size(); k++) {
+                    rootLikelihood += rootPartials[k];
+                }
+                categoryLogLikelihoods[i] = Math.log(rootLikelihood) + getLogScalingFactor(i);
             } else {
                 //the tree log likelihood is the log(p) of unedited state at the origin
-                categoryLogLikelihoods[i] = Math.log(calculateOriginPartial(tree.getRoot(), i)) + getLogScalingFactor();
+                categoryLogLikelihoods[i] = Math.log(calculateOriginPartial(root, i)) + getLogScalingFactor(i);
 
             }
         }
-        logP = logSum(categoryLogLikelihoods, categoryLogLikelihoods.length) - Math.log(m_siteModel.getCategoryCount());
-        return logP;
+        return logSum(categoryLogLikelihoods, categoryLogLikelihoods.length) - Math.log(categoryCount);
+    }
+
+    /**
+     * Calculate the log likelihood of a rate category from log space partials at the root.
+     */
+    protected double calculateRootLogPartial(Node root, int categoryId) {
+
+        if (originTime != 0.0) {
+            //the tree log likelihood is the log(p) of unedited state at the origin
+            return calculateLogPartialLikelihoodState(0, root, categoryId);
+        }
+
+        //sum of all partial likelihoods at the root
+        int rootNr = root.getNr();
+        int nrOfStates = getAncestralStates(rootNr).size();
+        double[] rootLogTerms = logTerms.get();
+        System.arraycopy(partialLikelihoods[currentPartialsIndex[rootNr]][rootNr][categoryId], 0, rootLogTerms, 0, nrOfStates);
+        return logSum(rootLogTerms, nrOfStates);
     }
 
     /**
@@ -200,32 +479,39 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
      * but this sounded like a headache to organize (and he doesn't use the threshold idea
      * which improves the performance quite a bit).
      *
+     * Each rate category is scaled separately.
+     *
      * @param nodeNumber
      */
     protected void scalePartials(int nodeNumber) {
 
-        double scaleFactor = 0.0;
+        int nrOfStates = getAncestralStates(nodeNumber).size();
 
-        //find the highest partial likelihood
-        //is node number same as nodeIndex
-        for (int k = 0; k < partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber].length; k++) {
+        for (int categoryId = 0; categoryId < categoryCount; categoryId++) {
 
-            if (partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber][k] > scaleFactor) {
-                scaleFactor = partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber][k];
-            }
+            double[] partials = partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber][categoryId];
+            double scaleFactor = 0.0;
 
-        }
-        //if this partial is smaller than the threshold, scale the partials
-        if (scaleFactor < scalingThreshold) {
+            //find the highest partial likelihood
+            for (int k = 0; k < nrOfStates; k++) {
+
+                if (partials[k] > scaleFactor) {
+                    scaleFactor = partials[k];
+                }
 
-            for (int k = 0; k < partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber].length; k++) {
-                partialLikelihoods[currentPartialsIndex[nodeNumber]][nodeNumber][k] /= scaleFactor;
             }
-            // save the log(scaling factors)
-            scalingFactors[currentPartialsIndex[nodeNumber]][nodeNumber] = Math.log(scaleFactor);
+            //if this partial is smaller than the threshold, scale the partials
+            if (scaleFactor < scalingThreshold) {
 
-        } else {
-            scalingFactors[currentPartialsIndex[nodeNumber]][nodeNumber] = 0.0;
+                for (int k = 0; k < nrOfStates; k++) {
+                    partials[k] /= scaleFactor;
+                }
+                // save the log(scaling factors)
+                scalingFactors[currentPartialsIndex[nodeNumber]][nodeNumber][categoryId] = Math.log(scaleFactor);
+
+            } else {
+                scalingFactors[currentPartialsIndex[nodeNumber]][nodeNumber][categoryId] = 0.0;
+            }
         }
 
     }
@@ -235,94 +521,433 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
      */
     protected void initLeafPartials(int nodeNr) {
 
-        double[] leafPartialLikelihoods = initPartialLikelihoodsLeaf(ancestralStates.get(makeCachingIndexStates(nodeNr)).size());
-        this.partialLikelihoods[0][nodeNr] = new double[leafPartialLikelihoods.length];
-        this.partialLikelihoods[1][nodeNr] = new double[leafPartialLikelihoods.length];
-        System.arraycopy(leafPartialLikelihoods, 0, this.partialLikelihoods[0][nodeNr], 0, leafPartialLikelihoods.length);
+        double[] leafPartialLikelihoods = initPartialLikelihoodsLeaf(getAncestralStates(nodeNr).size());
+        if (useLogPartials) {
+            for (int k = 0; k < leafPartialLikelihoods.length; k++) {
+                leafPartialLikelihoods[k] = Math.log(leafPartialLikelihoods[k]);
+            }
+        }
+        for (int categoryId = 0; categoryId < categoryCount; categoryId++) {
+            System.arraycopy(leafPartialLikelihoods, 0, this.partialLikelihoods[0][nodeNr][categoryId], 0, leafPartialLikelihoods.length);
+        }
 
     }
 
 
-    public int makeCachingIndexStates(int nodeIndex) {
-        int node = nodeIndex + 1;
-        String forHashing = node + "" +  currentStatesIndex[nodeIndex] + ""+ node;
-        return forHashing.hashCode();
-
+    /**
+     * @return the current set of possible ancestral states at a node
+     */
+    public AncestralStateSet getAncestralStates(int nodeIndex) {
+        return ancestralStates[currentStatesIndex[nodeIndex]][nodeIndex];
     }
 
 
     /**
-     * Calculate the set of ancestral states for a given leaf node, and fill the corresponding AncestralStates hashmap
+     * Calculate the set of ancestral states for a given leaf node, and fill the corresponding ancestralStates array.
+     * The possible ancestors of a leaf are all prefixes of its sequence, up to the full sequence.
      */
     protected void initLeafAncestors(int nodeNr) {
 
-        List<List<Integer>> possibleLeafAncestors = getPossibleAncestors(dataInput.get().getCounts().get(nodeNr));
-        ancestralStates.put(makeCachingIndexStates(nodeNr), possibleLeafAncestors);
+        // states are read through the site patterns, as a FilteredAlignment shares the counts of all sites
+        Alignment data = dataInput.get();
+        leafSequences[nodeNr] = new int[data.getSiteCount()];
+        int nrOfEdits = 0;
+        for (int i = 0; i < leafSequences[nodeNr].length; i++) {
+            leafSequences[nodeNr][i] = data.getPattern(nodeNr, data.getPatternIndex(i));
+            if (leafSequences[nodeNr][i] != 0) {
+                if (nrOfEdits != i) {
+                    throw new IllegalArgumentException(String.format(
+                            "Invalid sequence for taxon %d: edits have to be contiguous from the start of the array", nodeNr));
+                }
+                nrOfEdits++;
+            }
+        }
+
+        AncestralStateSet possibleLeafAncestors = new AncestralStateSet(nodeNr, leafSequences[nodeNr], nrOfEdits);
+        ancestralStates[currentStatesIndex[nodeNr]][nodeNr] = possibleLeafAncestors;
+
+        leafLogInsertProbabilities[nodeNr] = new double[nrOfEdits + 1];
+        leafImpossibleInserts[nodeNr] = new int[nrOfEdits + 1];
+
+    }
+
+    /**
+     * Fill the cumulative log insert probabilities of all leaves from the current edit probabilities.
+     */
+    protected void updateLeafInsertProbabilities() {
+
+        double[] logEditProbabilities = substitutionModel.getLogInsertProbabilities();
+        for (int leafNr = 0; leafNr < leafSequences.length; leafNr++) {
+            double[] logInsertProbabilities = leafLogInsertProbabilities[leafNr];
+            int[] impossibleInserts = leafImpossibleInserts[leafNr];
+            for (int prefixLength = 1; prefixLength < logInsertProbabilities.length; prefixLength++) {
+                //inserts are in {1, ..., nInserts}; insertProbabilities are in {0, ..., nInserts - 1}
+                double logEditProbability = logEditProbabilities[leafSequences[leafNr][prefixLength - 1] - 1];
+                if (logEditProbability == Double.NEGATIVE_INFINITY) {
+                    logInsertProbabilities[prefixLength] = logInsertProbabilities[prefixLength - 1];
+                    impossibleInserts[prefixLength] = impossibleInserts[prefixLength - 1] + 1;
+                } else {
+                    logInsertProbabilities[prefixLength] = logInsertProbabilities[prefixLength - 1] + logEditProbability;
+                    impossibleInserts[prefixLength] = impossibleInserts[prefixLength - 1];
+                }
+            }
+        }
+        impossibleInserts = false;
+        impossibleInsertsBelowRoot = false;
+        for (int leafNr = 0; leafNr < leafSequences.length; leafNr++) {
+            int[] impossibleInsertCounts = leafImpossibleInserts[leafNr];
+            int nrOfImpossibleInserts = impossibleInsertCounts[impossibleInsertCounts.length - 1];
+            impossibleInserts |= nrOfImpossibleInserts != 0;
+            impossibleInsertsBelowRoot |= nrOfImpossibleInserts != impossibleInsertCounts[commonLeafPrefixLength];
+        }
+        updateLeafInsertProbabilities = false;
+        leafInsertProbabilitiesChanged = true;
+    }
+
+    /**
+     * @return log of the probability of the inserts between two prefixes of the sequence of a leaf
+     */
+    protected double getLogInsertProbability(int leafNr, int startPrefixLength, int endPrefixLength) {
 
+        if (leafImpossibleInserts[leafNr][endPrefixLength] != leafImpossibleInserts[leafNr][startPrefixLength]) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return leafLogInsertProbabilities[leafNr][endPrefixLength] - leafLogInsertProbabilities[leafNr][startPrefixLength];
     }
 
 
     /**
-     * This implements a postorder traversal of the tree to fill the ancestralStates hashmap and corresponding partialLikelihood array.
+     * Rebuild the post-order schedule if the topology changed, that is if a node is filthy, or if it was restored.
+     * This uses an explicit stack, so that deep (e.g. caterpillar) trees cannot overflow the call stack.
      */
-    protected int traverse(Node node, int categoryId) {
+    protected void updateSchedule(TreeInterface tree) {
 
-        int update = (node.isDirty() | hasDirt);
-        int nodeIndex = node.getNr();
+        Node[] nodes = tree.getNodesAsArray();
+
+        for (int i = 0; i < nodeCount && !rebuildSchedule; i++) {
+            rebuildSchedule = nodes[i].isDirty() == Tree.IS_FILTHY;
+        }
+        if (!rebuildSchedule) {
+            return;
+        }
+
+        // nodes are visited as node, right subtree, left subtree, which is the post-order reversed
+        int stackSize = 0;
+        int nrOfScheduledNodes = nodeCount;
+        scheduleStack[stackSize++] = tree.getRoot().getNr();
+        while (stackSize > 0) {
+
+            Node node = nodes[scheduleStack[--stackSize]];
+            int nodeNr = node.getNr();
+            postOrderNodeNrs[--nrOfScheduledNodes] = nodeNr;
 
-        final double branchRate = branchRateModel.getRateForBranch(node);
-        final double branchTime = node.getLength() * branchRate;
+            if (node.isLeaf()) {
+                leftChildNrs[nodeNr] = -1;
+                rightChildNrs[nodeNr] = -1;
+            } else {
+                leftChildNrs[nodeNr] = node.getLeft().getNr();
+                rightChildNrs[nodeNr] = node.getRight().getNr();
+                scheduleStack[stackSize++] = leftChildNrs[nodeNr];
+                scheduleStack[stackSize++] = rightChildNrs[nodeNr];
+            }
+        }
 
-        if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != m_branchLengths[nodeIndex])) {
-            m_branchLengths[nodeIndex] = branchTime;
-            update |= Tree.IS_DIRTY;
+        if (partialsPool != null) {
+            groupWaves();
         }
 
-        if (!node.isLeaf()) {
+        rebuildSchedule = false;
+        scheduleChanged = true;
+    }
 
-            final Node child1 = node.getLeft();
-            final int update1 = traverse(child1, categoryId);
-            final Node child2 = node.getRight();
-            final int update2 = traverse(child2, categoryId);
+    /**
+     * Group the internal nodes of the schedule in waves by depth, with a counting sort.
+     */
+    protected void groupWaves() {
+
+        nrOfWaves = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            int nodeNr = postOrderNodeNrs[i];
+            if (leftChildNrs[nodeNr] < 0) {
+                nodeDepths[nodeNr] = 0;
+            } else {
+                nodeDepths[nodeNr] = 1 + Math.max(nodeDepths[leftChildNrs[nodeNr]], nodeDepths[rightChildNrs[nodeNr]]);
+                nrOfWaves = Math.max(nrOfWaves, nodeDepths[nodeNr]);
+            }
+        }
+
+        // wave k holds the internal nodes of depth k + 1, count them into waveStarts[k + 1] and sum up to the starts
+        Arrays.fill(waveStarts, 0, nrOfWaves + 1, 0);
+        for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++) {
+            if (nodeDepths[nodeNr] > 0) {
+                waveStarts[nodeDepths[nodeNr]]++;
+            }
+        }
+        for (int k = 1; k <= nrOfWaves; k++) {
+            waveStarts[k] += waveStarts[k - 1];
+        }
+
+        // the update buffer is free between traversals and serves as a cursor into each wave
+        System.arraycopy(waveStarts, 0, waveUpdateNodeNrs, 0, nrOfWaves);
+        for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++) {
+            if (nodeDepths[nodeNr] > 0) {
+                waveNodeNrs[waveUpdateNodeNrs[nodeDepths[nodeNr] - 1]++] = nodeNr;
+            }
+        }
+    }
+
+    /**
+     * This implements a postorder traversal of the tree to fill the partialLikelihood array, the ancestralStates array
+     * has to be up to date, see traverseStates.
+     */
+    protected void traverse(TreeInterface tree) {
+
+        Node[] nodes = tree.getNodesAsArray();
+
+        for (int i = 0; i < nodeCount; i++) {
+
+            int nodeNr = postOrderNodeNrs[i];
+            Node node = nodes[nodeNr];
+            int update = (node.isDirty() | hasDirt);
+
+            // all nodes but the root, which is last
+            if (i < nodeCount - 1) {
+                final double branchTime = node.getLength() * branchRateModel.getRateForBranch(node);
+                if (update != Tree.IS_CLEAN || branchTime != m_branchLengths[nodeNr]) {
+                    m_branchLengths[nodeNr] = branchTime;
+                    update |= Tree.IS_DIRTY;
+                }
+            }
+
+            final int child1Nr = leftChildNrs[nodeNr];
+            final int child2Nr = rightChildNrs[nodeNr];
+            int scheduledUpdate = Tree.IS_CLEAN;
 
             // If either child node was updated then update this node too
-            if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN) {
+            if (child1Nr >= 0 && (nodeUpdates[child1Nr] != Tree.IS_CLEAN || nodeUpdates[child2Nr] != Tree.IS_CLEAN)) {
 
-                update |= (update1 | update2);
+                update |= (nodeUpdates[child1Nr] | nodeUpdates[child2Nr]);
 
-                if (update >= Tree.IS_FILTHY) {
-                    setNodeStatesForUpdate(nodeIndex);
-                    calculateStates(nodeIndex, child1.getNr(), child2.getNr());
+                updateBranchProbabilities(child1Nr, m_branchLengths[child1Nr]);
+                updateBranchProbabilities(child2Nr, m_branchLengths[child2Nr]);
+                if (partialsPool == null) {
+                    updateNode(node, update);
+                }
+                scheduledUpdate = update;
+            }
+
+            nodeUpdates[nodeNr] = update;
+            if (partialsPool != null) {
+                scheduledUpdates[nodeNr] = scheduledUpdate;
+            }
+        }
+
+        if (partialsPool != null) {
+            updateScheduledNodes(nodes);
+        }
+    }
+
+    /**
+     * Recalculate the partials of the nodes with scheduled updates, wave by wave. Waves with at least minWaveSize
+     * nodes to update are split over the threads of the partialsPool.
+     */
+    protected void updateScheduledNodes(Node[] nodes) {
+
+        for (int k = 0; k < nrOfWaves; k++) {
+
+            int nrOfUpdates = 0;
+            for (int j = waveStarts[k]; j < waveStarts[k + 1]; j++) {
+                if (scheduledUpdates[waveNodeNrs[j]] != Tree.IS_CLEAN) {
+                    waveUpdateNodeNrs[nrOfUpdates++] = waveNodeNrs[j];
+                }
+            }
+
+            if (nrOfUpdates >= minWaveSize) {
+                int chunkSize = Math.max(1, nrOfUpdates / (4 * partialsPool.getParallelism()));
+                partialsPool.invoke(new WaveUpdate(nodes, 0, nrOfUpdates, chunkSize));
+            } else {
+                for (int j = 0; j < nrOfUpdates; j++) {
+                    updateNode(nodes[waveUpdateNodeNrs[j]], scheduledUpdates[waveUpdateNodeNrs[j]]);
                 }
+            }
+        }
+    }
+
+    /**
+     * Updates the nodes waveUpdateNodeNrs[from, to) of a wave, splitting the range in halves down to chunkSize nodes.
+     */
+    protected class WaveUpdate extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node[] nodes;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        WaveUpdate(Node[] nodes, int from, int to, int chunkSize) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                for (int j = from; j < to; j++) {
+                    updateNode(nodes[waveUpdateNodeNrs[j]], scheduledUpdates[waveUpdateNodeNrs[j]]);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new WaveUpdate(nodes, from, middle, chunkSize), new WaveUpdate(nodes, middle, to, chunkSize));
+            }
+        }
+    }
+
+    /**
+     * This implements a postorder traversal of the tree that only updates the ancestralStates array, at nodes
+     * that are filthy or have filthy descendants. This only takes longest common prefixes and is much cheaper than
+     * the partials, which are updated by traverse afterwards.
+     */
+    protected void traverseStates(TreeInterface tree) {
 
-                setNodePartialsForUpdate(nodeIndex);
-                calculatePartials(nodeIndex, child1, child2, categoryId);
+        Node[] nodes = tree.getNodesAsArray();
 
-                if (useScaling) {
-                    scalePartials(nodeIndex);
+        for (int i = 0; i < nodeCount; i++) {
+
+            int nodeNr = postOrderNodeNrs[i];
+            int update = (nodes[nodeNr].isDirty() | hasDirt);
+            int child1Nr = leftChildNrs[nodeNr];
+
+            if (child1Nr >= 0) {
+
+                int child2Nr = rightChildNrs[nodeNr];
+                update |= nodeUpdates[child1Nr] | nodeUpdates[child2Nr];
+
+                if (update >= Tree.IS_FILTHY) {
+                    setNodeStatesForUpdate(nodeNr);
+                    calculateStates(nodeNr, child1Nr, child2Nr);
                 }
+            }
+
+            nodeUpdates[nodeNr] = update;
+        }
+    }
+
+    protected void updateStates(Node node) {
+
+        int nodeIndex = node.getNr();
+        setNodeStatesForUpdate(nodeIndex);
+        calculateStates(nodeIndex, node.getLeft().getNr(), node.getRight().getNr());
+    }
+
+    /**
+     * Recalculate the partials of all internal nodes of the fixed topology in post-order, with the ancestral states
+     * of the first evaluation. Every internal node is recalculated at every step, whether or not it is dirty. The
+     * branch probabilities of both children are checked against the cached branch times, see
+     * updateBranchProbabilities, and refilled only for branches whose time changed.
+     */
+    protected void updateFixedTopologyPartials(TreeInterface tree) {
+
+        Node[] nodes = tree.getNodesAsArray();
+
+        for (int i = 0; i < nodeCount; i++) {
+
+            int nodeNr = postOrderNodeNrs[i];
+            if (leftChildNrs[nodeNr] < 0) {
+                continue;
+            }
 
+            Node node = nodes[nodeNr];
+            if (node.isDirty() == Tree.IS_FILTHY && hasDirt != Tree.IS_FILTHY) {
+                throw new RuntimeException("The tree topology changed, which is not possible with fixedTopology=true");
+            }
+
+            updateBranchProbabilities(nodes[leftChildNrs[nodeNr]]);
+            updateBranchProbabilities(nodes[rightChildNrs[nodeNr]]);
+            if (partialsPool == null) {
+                updateNode(node, Tree.IS_DIRTY);
+            } else {
+                scheduledUpdates[nodeNr] = Tree.IS_DIRTY;
             }
         }
 
-        return update;
+        if (partialsPool != null) {
+            updateScheduledNodes(nodes);
+        }
+    }
+
+    /**
+     * Recalculate the partials and their scaling at an internal node, given up to date ancestral states, children
+     * and branch probabilities.
+     */
+    protected void updateNode(Node node, int update) {
+
+        int nodeIndex = node.getNr();
+
+        setNodePartialsForUpdate(nodeIndex);
+        calculatePartials(nodeIndex, node.getLeft(), node.getRight());
+        updateNonZeroStates(nodeIndex);
+
+        if (useScaling) {
+            scalePartials(nodeIndex);
+            accumulateScalingFactors(nodeIndex, node.getLeft().getNr(), node.getRight().getNr());
+        }
+    }
+
+    /**
+     * Collect the prefix lengths of the non-zero partials (or log partials other than log(0)) at a node.
+     */
+    protected void updateNonZeroStates(int nodeNr) {
+
+        int nrOfStates = getAncestralStates(nodeNr).size();
+        double zero = useLogPartials ? Double.NEGATIVE_INFINITY : 0.0;
+
+        for (int categoryId = 0; categoryId < categoryCount; categoryId++) {
+
+            double[] partials = partialLikelihoods[currentPartialsIndex[nodeNr]][nodeNr][categoryId];
+            int[] states = nonZeroStates[currentPartialsIndex[nodeNr]][nodeNr][categoryId];
+            int nrOfStatesInUse = 0;
+            for (int prefixLength = nrOfStates - 1; prefixLength >= 0; prefixLength--) {
+                if (partials[prefixLength] != zero) {
+                    states[nrOfStatesInUse++] = prefixLength;
+                }
+            }
+            nrOfNonZeroStates[currentPartialsIndex[nodeNr]][nodeNr][categoryId] = nrOfStatesInUse;
+        }
+    }
+
+    /**
+     * Sum the log scaling factors of a node with the subtree sums of its children. Children are up to date when
+     * their parent is updated, so the sum at the root is the total over all nodes.
+     */
+    protected void accumulateScalingFactors(int nodeNr, int child1Nr, int child2Nr) {
+
+        double[] nodeScalingFactors = scalingFactors[currentPartialsIndex[nodeNr]][nodeNr];
+        double[] child1SubtreeScalingFactors = subtreeScalingFactors[currentPartialsIndex[child1Nr]][child1Nr];
+        double[] child2SubtreeScalingFactors = subtreeScalingFactors[currentPartialsIndex[child2Nr]][child2Nr];
+        double[] nodeSubtreeScalingFactors = subtreeScalingFactors[currentPartialsIndex[nodeNr]][nodeNr];
+
+        for (int categoryId = 0; categoryId < categoryCount; categoryId++) {
+            nodeSubtreeScalingFactors[categoryId] = nodeScalingFactors[categoryId]
+                    + child1SubtreeScalingFactors[categoryId] + child2SubtreeScalingFactors[categoryId];
+        }
     }
 
     /**
      * Construct a set of possible ancestral states at an internal node by intersection of children sets, updates the
-     * AncestralStates hashmap with the resulting set.
+     * ancestralStates array with the resulting set.
      */
     public void calculateStates(int nodeNr, int child1Nr, int child2Nr) {
 
-        List<List<Integer>> ancSetChild1 = ancestralStates.get(makeCachingIndexStates(child1Nr));
-        List<List<Integer>> ancSetChild2 = ancestralStates.get(makeCachingIndexStates(child2Nr));
-
-        List<List<Integer>> ancSetNode = new ArrayList<>(ancSetChild1);
+        AncestralStateSet ancSetChild1 = getAncestralStates(child1Nr);
+        AncestralStateSet ancSetChild2 = getAncestralStates(child2Nr);
 
-        // intersection of children ancestral states
-        ancSetNode.retainAll(ancSetChild2);
+        // intersection of children ancestral states: their longest common prefix
+        AncestralStateSet ancSetNode = AncestralStateSet.intersection(ancSetChild1, ancSetChild2);
 
-        ancestralStates.put(makeCachingIndexStates(nodeNr), ancSetNode);
+        ancestralStates[currentStatesIndex[nodeNr]][nodeNr] = ancSetNode;
     }
 
     public void setNodePartialsForUpdate(int nodeIndex) {
@@ -336,96 +961,221 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
 
     /**
      * This function calculates partial likelihoods for all possible states at a node given its children partials
-     * and sets the corresponding partial likelihoods, for all possible states at node nodeNr
+     * and sets the corresponding partial likelihoods, for all possible states at node nodeNr and all rate categories.
+     * The ancestral states, and thus the insert probabilities, are shared by all categories.
+     * The poisson probabilities of both child branches have to be up to date, see updateBranchProbabilities.
      */
-    public void calculatePartials(int nodeNr, Node child1, Node child2, int categoryId) {
+    public void calculatePartials(int nodeNr, Node child1, Node child2) {
 
-        //initialize an array for the partials
-        double[] partials = new double[ancestralStates.get(makeCachingIndexStates(nodeNr)).size()];
+        int nrOfStates = getAncestralStates(nodeNr).size();
 
-        for (int stateIndex = 0; stateIndex < ancestralStates.get(makeCachingIndexStates(nodeNr)).size(); ++stateIndex) {
+        for (int categoryId = 0; categoryId < categoryCount; categoryId++) {
 
-            List<Integer> startState = ancestralStates.get(makeCachingIndexStates(nodeNr)).get(stateIndex);
+            //the partials are written into the preallocated buffer of the node
+            double[] partials = partialLikelihoods[currentPartialsIndex[nodeNr]][nodeNr][categoryId];
 
-            double child1PartialLikelihoodState = calculatePartialLikelihoodState(startState, child1, categoryId);
-            double child2PartialLikelihoodState = calculatePartialLikelihoodState(startState, child2, categoryId);
+            for (int startPrefixLength = 0; startPrefixLength < nrOfStates; ++startPrefixLength) {
 
-            partials[stateIndex] = child1PartialLikelihoodState * child2PartialLikelihoodState;
-        }
+                if (useLogPartials) {
+                    partials[startPrefixLength] = calculateLogPartialLikelihoodState(startPrefixLength, child1, categoryId)
+                            + calculateLogPartialLikelihoodState(startPrefixLength, child2, categoryId);
+                    continue;
+                }
 
-        partialLikelihoods[currentPartialsIndex[nodeNr]][nodeNr] = partials;
+                double child1PartialLikelihoodState = calculatePartialLikelihoodState(startPrefixLength, child1, categoryId);
+                double child2PartialLikelihoodState = calculatePartialLikelihoodState(startPrefixLength, child2, categoryId);
+
+                partials[startPrefixLength] = child1PartialLikelihoodState * child2PartialLikelihoodState;
+            }
+        }
 
     }
 
     /**
      * This function calculates the likelihood of the unedited state at the origin given partial likelihoods at the root
-     * node
+     * node. The unedited state is the empty prefix for any arrayLength, so this is the sum over the non-zero root
+     * partials weighted by the transition probabilities on the branch from the origin, without building the state.
+     *
+     * The poisson probabilities of the branch from the origin have to be up to date, see updateBranchProbabilities.
      *
      * @return likelihood of the unedited barcode at t = origin
      */
-
     public double calculateOriginPartial(Node rootNode, int categoryId) {
 
-        //the start state is the unedited sciphy barcode
-        List<Integer> startState = Arrays.asList(0, 0, 0, 0, 0);
-        double partialAtOrigin = calculatePartialLikelihoodState(startState, rootNode, categoryId);
-        return partialAtOrigin;
+        //the start state is the unedited sciphy barcode, prefix length 0
+        return calculatePartialLikelihoodState(0, rootNode, categoryId);
+    }
+
+    /**
+     * Use poisson probability tables filled by another calculation on the same tree, with the same site and branch rate
+     * models (see MultiBarcodeTreeLikelihood). Tables for a longer array can be shared, as entries do not depend on it.
+     * When called before initAndValidate, no tables of its own are allocated.
+     */
+    protected void setBranchProbabilities(double[][][] poissonProbabilities, double[][][] absorbingStateProbabilities) {
+        this.poissonProbabilities = poissonProbabilities;
+        this.absorbingStateProbabilities = absorbingStateProbabilities;
+        if (branchProbabilityTimes != null) {
+            Arrays.fill(branchProbabilityTimes, Double.NaN);
+        }
+    }
 
+    /**
+     * @return the cache of branch poisson probabilities, with its hit and miss counts, or null if there is no cache
+     */
+    public PoissonProbabilityCache getPoissonProbabilityCache() {
+        return poissonProbabilityCache;
+    }
+
+    /**
+     * Check the category rates of the site model, if they changed all branch probabilities have to be refilled.
+     */
+    protected void updateCategoryRates() {
+
+        for (int categoryId = 0; categoryId < categoryCount; categoryId++) {
+            double categoryRate = m_siteModel.getRateForCategory(categoryId, treeInput.get().getRoot());
+            if (categoryRate != branchProbabilityCategoryRates[categoryId]) {
+                branchProbabilityCategoryRates[categoryId] = categoryRate;
+                Arrays.fill(branchProbabilityTimes, Double.NaN);
+            }
+        }
+    }
+
+    /**
+     * This function fills the poisson probabilities of the branch leading to a child node for all rate categories,
+     * unless they are already filled for the current branch time. For the root, the branch goes from the origin to
+     * the root.
+     */
+    protected void updateBranchProbabilities(Node childNode) {
+
+        final double branchTime;
+
+        if (childNode.isRoot()) {
+            branchTime = (originTime - childNode.getHeight()) * branchRateModel.getRateForBranch(childNode);
+        } else {
+            branchTime = childNode.getLength() * branchRateModel.getRateForBranch(childNode);
+        }
+
+        updateBranchProbabilities(childNode.getNr(), branchTime);
+    }
+
+    /**
+     * Fill the poisson probabilities of the branch above a node for a branch time (scaled by the branch rate) in
+     * all rate categories, unless they already are for that time.
+     */
+    protected void updateBranchProbabilities(int nodeNr, double branchTime) {
+
+        if (branchTime == branchProbabilityTimes[nodeNr]) {
+            return;
+        }
+        branchProbabilityTimes[nodeNr] = branchTime;
+
+        for (int categoryId = 0; categoryId < categoryCount; categoryId++) {
+            //evolutionary distance for the category
+            final double distance = branchTime * branchProbabilityCategoryRates[categoryId];
+            if (poissonProbabilityCache != null) {
+                poissonProbabilityCache.getPoissonProbabilities(distance,
+                        poissonProbabilities[nodeNr][categoryId], absorbingStateProbabilities[nodeNr][categoryId]);
+            } else {
+                SciPhySubstitutionModel.getPoissonProbabilities(distance,
+                        poissonProbabilities[nodeNr][categoryId], absorbingStateProbabilities[nodeNr][categoryId]);
+            }
+        }
     }
 
     /**
      * This function calculates the partial likelihood term of a specific state at a node derived on a branch leading to
-     * a child node
+     * a child node. Ancestral states of a node are also ancestral states of its children, so the start state is
+     * given by its prefix length along the reference sequence of the child.
+     * The poisson probabilities of the branch have to be up to date, see updateBranchProbabilities.
      *
      * @return partial likelihood for a state at a node given partials at a node childNode
      */
-    public double calculatePartialLikelihoodState(List<Integer> startState, Node childNode, int categoryId) {
+    public double calculatePartialLikelihoodState(int startPrefixLength, Node childNode, int categoryId) {
 
-        final double branchRate = branchRateModel.getRateForBranch(childNode);
         double statePartialLikelihood = 0;
-        final double jointBranchRate = m_siteModel.getRateForCategory(categoryId, childNode) * branchRate;
-        double distance;
+        double[] branchPoissonProbabilities = poissonProbabilities[childNode.getNr()][categoryId];
+        double[] branchAbsorbingStateProbabilities = absorbingStateProbabilities[childNode.getNr()][categoryId];
+        double[] childPartials = partialLikelihoods[currentPartialsIndex[childNode.getNr()]][childNode.getNr()][categoryId];
+        AncestralStateSet childStates = getAncestralStates(childNode.getNr());
+        int referenceNr = childStates.getReferenceNr();
 
-        //initialise evolutionary distance
-        if (childNode.isRoot()) {
-            distance = (originTime - childNode.getHeight()) * jointBranchRate;
-        } else {
-            distance = childNode.getLength() * jointBranchRate;
-        }
         // calculate partials
         if (childNode.isLeaf()) {
 
-            List<Integer> endState = ancestralStates.get(makeCachingIndexStates(childNode.getNr())).get(0);
-            statePartialLikelihood += substitutionModel.getSequenceTransitionProbability(startState, endState, distance, this.arrayLength);
+            int endPrefixLength = childStates.getMaxPrefixLength();
+            double logInsertProbability = getLogInsertProbability(referenceNr, startPrefixLength, endPrefixLength);
+            statePartialLikelihood += substitutionModel.getTransitionProbability(startPrefixLength, endPrefixLength, this.arrayLength,
+                    branchPoissonProbabilities, branchAbsorbingStateProbabilities, logInsertProbability);
 
         } else {
 
-            for (int endStateIndex = 0; endStateIndex < ancestralStates.get(makeCachingIndexStates(childNode.getNr())).size(); ++endStateIndex) {
-
-                List<Integer> endState = ancestralStates.get(makeCachingIndexStates(childNode.getNr())).get(endStateIndex);
+            int childIndex = currentPartialsIndex[childNode.getNr()];
+            int[] childStatesInUse = nonZeroStates[childIndex][childNode.getNr()][categoryId];
+            int nrOfChildStatesInUse = nrOfNonZeroStates[childIndex][childNode.getNr()][categoryId];
 
-                // if the end state has non-null partial likelihood
-                if (partialLikelihoods[currentPartialsIndex[childNode.getNr()]][childNode.getNr()][endStateIndex] != 0.0) {
+            // only end states with non-null partial likelihood, at least as edited as the start state, are summed up
+            for (int i = 0; i < nrOfChildStatesInUse && childStatesInUse[i] >= startPrefixLength; i++) {
 
-                    statePartialLikelihood = statePartialLikelihood + substitutionModel.getSequenceTransitionProbability(startState, endState, distance, this.arrayLength) *
-                            partialLikelihoods[currentPartialsIndex[childNode.getNr()]][childNode.getNr()][endStateIndex];
-
-                }
+                int endPrefixLength = childStatesInUse[i];
+                double logInsertProbability = getLogInsertProbability(referenceNr, startPrefixLength, endPrefixLength);
+                statePartialLikelihood = statePartialLikelihood + substitutionModel.getTransitionProbability(startPrefixLength, endPrefixLength, this.arrayLength,
+                        branchPoissonProbabilities, branchAbsorbingStateProbabilities, logInsertProbability) *
+                        childPartials[endPrefixLength];
             }
         }
         return statePartialLikelihood;
     }
 
+    /**
+     * Log space version of calculatePartialLikelihoodState: child partials are log values, and the sum over end states
+     * is calculated with logSum, so that it cannot underflow.
+     *
+     * @return log partial likelihood for a state at a node given log partials at a node childNode
+     */
+    public double calculateLogPartialLikelihoodState(int startPrefixLength, Node childNode, int categoryId) {
+
+        double[] branchPoissonProbabilities = poissonProbabilities[childNode.getNr()][categoryId];
+        double[] branchAbsorbingStateProbabilities = absorbingStateProbabilities[childNode.getNr()][categoryId];
+        AncestralStateSet childStates = getAncestralStates(childNode.getNr());
+        int referenceNr = childStates.getReferenceNr();
+
+        if (childNode.isLeaf()) {
+
+            int endPrefixLength = childStates.getMaxPrefixLength();
+            return Math.log(substitutionModel.getEditCountProbability(startPrefixLength, endPrefixLength, this.arrayLength,
+                    branchPoissonProbabilities, branchAbsorbingStateProbabilities))
+                    + getLogInsertProbability(referenceNr, startPrefixLength, endPrefixLength);
+        }
+
+        int childIndex = currentPartialsIndex[childNode.getNr()];
+        double[] childPartials = partialLikelihoods[childIndex][childNode.getNr()][categoryId];
+        int[] childStatesInUse = nonZeroStates[childIndex][childNode.getNr()][categoryId];
+        int nrOfChildStatesInUse = nrOfNonZeroStates[childIndex][childNode.getNr()][categoryId];
+        double[] logTerms = this.logTerms.get();
+        int nrOfTerms = 0;
+
+        // only end states with non-null partial likelihood, at least as edited as the start state, are summed up
+        for (int i = 0; i < nrOfChildStatesInUse && childStatesInUse[i] >= startPrefixLength; i++) {
+
+            int endPrefixLength = childStatesInUse[i];
+            logTerms[nrOfTerms++] = Math.log(substitutionModel.getEditCountProbability(startPrefixLength, endPrefixLength,
+                    this.arrayLength, branchPoissonProbabilities, branchAbsorbingStateProbabilities))
+                    + getLogInsertProbability(referenceNr, startPrefixLength, endPrefixLength) + childPartials[endPrefixLength];
+        }
+        return nrOfTerms == 0 ? Double.NEGATIVE_INFINITY : logSum(logTerms, nrOfTerms);
+    }
+
     /**
      * This function initialises an array of partial likelihoods for a leaf node, the partial likelihood is 1 for
      * the observed sequence and 0 for everything else. The size corresponds to the total number of possible ancestral states.
+     * Partials are indexed by prefix length, so the observed sequence is the last state.
      *
      * @return array of partial likelihoods at leaf node
      */
     public double[] initPartialLikelihoodsLeaf(int size) {
 
         double[] leafPartials = new double[size];
-        leafPartials[0] = 1;
+        leafPartials[size - 1] = 1;
         return leafPartials;
     }
 
@@ -452,19 +1202,18 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     }
 
     /**
-     * This function returns the scaling factor for that pattern by summing over
-     * the log scalings used at each node. If scaling is off then this just returns
-     * a 0.
+     * This function returns the scaling factor for that pattern, which is the sum of
+     * the log scalings used at each node, as accumulated at the root. If scaling is
+     * off then this just returns a 0.
      *
-     * @return the log scaling factor
+     * @return the log scaling factor of a rate category
      */
-    public double getLogScalingFactor() {
+    public double getLogScalingFactor(int categoryId) {
 
         double logScalingFactor = 0.0;
         if (useScaling) {
-            for (int i = 0; i < nodeCount; i++) {
-                logScalingFactor += scalingFactors[currentPartialsIndex[i]][i];
-            }
+            int rootNr = treeInput.get().getRoot().getNr();
+            logScalingFactor = subtreeScalingFactors[currentPartialsIndex[rootNr]][rootNr][categoryId];
         }
         return logScalingFactor;
     }
@@ -478,8 +1227,13 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
     protected boolean requiresRecalculation() {
         hasDirt = Tree.IS_CLEAN;
 
+        // checked before the alignment, which returns early when everything is dirty (e.g. on resume)
+        if (substitutionModel.isDirtyCalculation()) {
+            updateLeafInsertProbabilities = true;
+        }
         if (dataInput.get().isDirtyCalculation()) {
             hasDirt = Tree.IS_FILTHY;
+            updateLeafInsertProbabilities = true;
             return true;
         }
         if (m_siteModel.isDirtyCalculation()) {
@@ -500,6 +1254,9 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
         System.arraycopy(m_branchLengths, 0, storedBranchLengths, 0, m_branchLengths.length);
         System.arraycopy(currentPartialsIndex, 0, storedPartialsIndex, 0, nodeCount);
         System.arraycopy(currentStatesIndex, 0, storedStatesIndex, 0, nodeCount);
+        leafInsertProbabilitiesChanged = false;
+        storedTraversalSkipped = traversalSkipped;
+        scheduleChanged = false;
     }
 
     //TODO do we need unstore??? We think we don't because when scaling is active, it is for the entire likelihood
@@ -519,6 +1276,12 @@ public class SciPhyTreeLikelihood extends GenericTreeLikelihood {
         int[] tmp3 = currentStatesIndex;
         currentStatesIndex = storedStatesIndex;
         storedStatesIndex = tmp3;
+
+        //insert probabilities computed from rejected edit probabilities have to be recomputed
+        updateLeafInsertProbabilities |= leafInsertProbabilitiesChanged;
+        traversalSkipped = storedTraversalSkipped;
+        //the schedule is for the rejected topology
+        rebuildSchedule |= scheduleChanged;
     }
 
 
@@ -0,0 +1,285 @@
+package sciphy.evolution.simulation;
+
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import sciphy.evolution.substitutionmodel.SciPhySubstitutionModel;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * Simulates sciphy barcodes down a tree, for SimulatedSciPhyAlignment and SimulatedSciPhyReplicates.
+ * With several targets, the barcodes of all targets are concatenated, target t taking sites
+ * t * arrayLength, ..., (t + 1) * arrayLength - 1, and are simulated together in a single walk over the tree.
+ * Branch distances and insert probabilities are read from the tree and the site model once, and all random numbers
+ * come from the generator passed to simulate, so that simulations with separate generators can run in parallel.
+ */
+public class SciPhySequenceSimulator {
+
+    protected final Tree tree;
+    protected final int arrayLength;
+    protected final int nrOfTargets;
+    protected final double[] insertProbabilities;
+
+    /**
+     * Walker alias table of the insert probabilities: column i keeps insert i + 1 with probability
+     * aliasProbabilities[i], and otherwise gives insert aliases[i] + 1
+     */
+    protected final double[] aliasProbabilities;
+    protected final int[] aliases;
+
+    /**
+     * expected number of edits on the branch above each node, and from the origin to the root (0 without origin)
+     */
+    protected final double[] branchDistances;
+    protected final double originDistance;
+
+    public SciPhySequenceSimulator(Tree tree, SiteModel siteModel, int arrayLength, double originHeight) {
+        this(tree, siteModel, arrayLength, 1, originHeight);
+    }
+
+    public SciPhySequenceSimulator(Tree tree, SiteModel siteModel, int arrayLength, int nrOfTargets, double originHeight) {
+
+        if (nrOfTargets < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Number of targets has to be positive, not %d", nrOfTargets));
+        }
+        this.tree = tree;
+        this.arrayLength = arrayLength;
+        this.nrOfTargets = nrOfTargets;
+
+        SciPhySubstitutionModel substModel = (SciPhySubstitutionModel) siteModel.getSubstitutionModel();
+        insertProbabilities = substModel.getInsertProbabilities();
+        aliasProbabilities = new double[insertProbabilities.length];
+        aliases = new int[insertProbabilities.length];
+        initAliasTable();
+
+        // ignore categories so far
+        branchDistances = new double[tree.getNodeCount()];
+        for (Node node : tree.getNodesAsArray()) {
+            if (!node.isRoot()) {
+                branchDistances[node.getNr()] = node.getLength() * siteModel.getRateForCategory(0, node);
+            }
+        }
+
+        Node root = tree.getRoot();
+        if (originHeight != 0) {
+            originDistance = (originHeight - root.getHeight()) * siteModel.getRateForCategory(0, root);
+        } else {
+            originDistance = 0.0;
+        }
+    }
+
+    /**
+     * Build the alias table with Vose's method, in O(nInserts): columns with less than the average probability are
+     * topped up from one column with more, which becomes their alias.
+     */
+    protected void initAliasTable() {
+
+        int n = insertProbabilities.length;
+        double sum = 0.0;
+        for (double insertProbability : insertProbabilities) {
+            sum += insertProbability;
+        }
+
+        // probabilities scaled to an average of 1, and stacks of the columns below and above average
+        double[] scaledProbabilities = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int nrOfSmall = 0;
+        int nrOfLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaledProbabilities[i] = insertProbabilities[i] * n / sum;
+            if (scaledProbabilities[i] < 1.0) {
+                small[nrOfSmall++] = i;
+            } else {
+                large[nrOfLarge++] = i;
+            }
+        }
+
+        while (nrOfSmall > 0 && nrOfLarge > 0) {
+            int lessProbable = small[--nrOfSmall];
+            int moreProbable = large[--nrOfLarge];
+            aliasProbabilities[lessProbable] = scaledProbabilities[lessProbable];
+            aliases[lessProbable] = moreProbable;
+            scaledProbabilities[moreProbable] += scaledProbabilities[lessProbable] - 1.0;
+            if (scaledProbabilities[moreProbable] < 1.0) {
+                small[nrOfSmall++] = moreProbable;
+            } else {
+                large[nrOfLarge++] = moreProbable;
+            }
+        }
+        // remaining columns are full, up to rounding errors
+        while (nrOfLarge > 0) {
+            int i = large[--nrOfLarge];
+            aliasProbabilities[i] = 1.0;
+            aliases[i] = i;
+        }
+        while (nrOfSmall > 0) {
+            int i = small[--nrOfSmall];
+            aliasProbabilities[i] = 1.0;
+            aliases[i] = i;
+        }
+    }
+
+    public int getNrOfTargets() {
+        return nrOfTargets;
+    }
+
+    /**
+     * @return names of the leaves, in the order of their barcodes: the IDs of the leaf nodes, or t0, t1, ... for leaves
+     * without ID
+     */
+    public String[] getTaxonNames() {
+
+        String[] taxonNames = new String[tree.getLeafNodeCount()];
+        for (int leafIdx = 0; leafIdx < taxonNames.length; leafIdx++) {
+            if (tree.getNode(leafIdx).getID() != null)
+                taxonNames[leafIdx] = tree.getNode(leafIdx).getID();
+            else
+                taxonNames[leafIdx] = "t" + leafIdx;
+        }
+        return taxonNames;
+    }
+
+    /**
+     * @return number of sites of a simulated barcode, all targets concatenated
+     */
+    public int getSiteCount() {
+        return nrOfTargets * arrayLength;
+    }
+
+    /**
+     * Simulate the barcodes at the leaves of the tree.
+     * The tree is walked depth first with an explicit stack, so that ladder-like trees cannot overflow the call
+     * stack. Rather than copying the barcode of every node, inserts are added to a single barcode on the way down and
+     * removed on the way back up. Edits on a path from the root to a leaf are bounded by the number of sites, so
+     * apart from the result, memory does not grow with the depth of the tree.
+     * Random numbers are drawn in the same order as a recursive walk over the children of each node.
+     *
+     * @return barcodes of all targets, concatenated, of leaf i at sites i * getSiteCount(), ...,
+     * (i + 1) * getSiteCount() - 1
+     */
+    public int[] simulate(RandomGenerator random) {
+
+        int siteCount = getSiteCount();
+        int[] barcodes = new int[tree.getLeafNodeCount() * siteCount];
+
+        // barcode at the current node, and the site where the next insertion could happen in each target
+        int[] sequence = new int[siteCount];
+        int[] insertionIndices = new int[nrOfTargets];
+
+        // then parent sequence is sequence at origin and we evolve sequence first down to the root
+        for (int target = 0; target < nrOfTargets; target++) {
+            insertionIndices[target] = target * arrayLength;
+            insertionIndices[target] += addInserts(sequence, insertionIndices[target], (target + 1) * arrayLength,
+                    originDistance, random);
+        }
+
+        // inserts added on the current path, as (node number, target, number of inserts), most recent last
+        int[] undoNodeNrs = new int[siteCount];
+        int[] undoTargets = new int[siteCount];
+        int[] undoCounts = new int[siteCount];
+        int undoSize = 0;
+
+        // node numbers to enter, and -(node number + 1) to leave, the next one last
+        int[] stack = new int[2 * tree.getNodeCount()];
+        int stackSize = 0;
+        Node root = tree.getRoot();
+        for (int i = root.getChildCount() - 1; i >= 0; i--) {
+            stack[stackSize++] = root.getChild(i).getNr();
+        }
+
+        while (stackSize > 0) {
+            int entry = stack[--stackSize];
+
+            if (entry < 0) {
+                // leave the node, removing the inserts on the branch above it
+                int nodeNr = -entry - 1;
+                while (undoSize > 0 && undoNodeNrs[undoSize - 1] == nodeNr) {
+                    undoSize--;
+                    int target = undoTargets[undoSize];
+                    insertionIndices[target] -= undoCounts[undoSize];
+                    Arrays.fill(sequence, insertionIndices[target], insertionIndices[target] + undoCounts[undoSize], 0);
+                }
+                continue;
+            }
+
+            // all targets evolve independently along the same branch
+            for (int target = 0; target < nrOfTargets; target++) {
+                int nrOfInserts = addInserts(sequence, insertionIndices[target], (target + 1) * arrayLength,
+                        branchDistances[entry], random);
+                if (nrOfInserts > 0) {
+                    undoNodeNrs[undoSize] = entry;
+                    undoTargets[undoSize] = target;
+                    undoCounts[undoSize] = nrOfInserts;
+                    undoSize++;
+                    insertionIndices[target] += nrOfInserts;
+                }
+            }
+
+            stack[stackSize++] = -entry - 1;
+            Node node = tree.getNode(entry);
+            if (node.isLeaf()) {
+                System.arraycopy(sequence, 0, barcodes, entry * siteCount, siteCount);
+            } else {
+                for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                    stack[stackSize++] = node.getChild(i).getNr();
+                }
+            }
+        }
+
+        return barcodes;
+    }
+
+    /**
+     * Add inserts from insertionIndex on, for a poisson number of edits with mean distance, while there are still
+     * possible insertion positions before the end of the target.
+     *
+     * @return number of inserts added
+     */
+    protected int addInserts(int[] sequence, int insertionIndex, int end, double distance, RandomGenerator random) {
+
+        int nrOfInserts = drawNrOfInserts(distance, end - insertionIndex, random);
+        for (int i = 0; i < nrOfInserts; i++) {
+            sequence[insertionIndex + i] = drawInsert(random);
+        }
+        return nrOfInserts;
+    }
+
+    /**
+     * Draw a poisson number of edits with a given mean, by inversion of the cumulative distribution. All edits beyond
+     * the number of possible inserts are lost, so the search stops there.
+     */
+    protected static int drawNrOfInserts(double mean, int nrOfPossibleInserts, RandomGenerator random) {
+
+        if (nrOfPossibleInserts == 0 || mean == 0.0) {
+            return 0;
+        }
+
+        double u = random.nextDouble();
+        double probability = Math.exp(-mean);
+        double cumulativeProbability = probability;
+        int nrOfInserts = 0;
+        while (nrOfInserts < nrOfPossibleInserts && u >= cumulativeProbability) {
+            nrOfInserts++;
+            probability *= mean / nrOfInserts;
+            cumulativeProbability += probability;
+        }
+        return nrOfInserts;
+    }
+
+    /**
+     * Draw an insert from the alias table in O(1), inserts are in {1, ..., nInserts}; insertProbabilities are in
+     * {0, ..., nInserts - 1}
+     */
+    private int drawInsert(RandomGenerator random) {
+
+        int i = random.nextInt(aliasProbabilities.length);
+        if (random.nextDouble() < aliasProbabilities[i]) {
+            return i + 1;
+        }
+        return aliases[i] + 1;
+    }
+}
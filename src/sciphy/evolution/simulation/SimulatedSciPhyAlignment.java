@@ -5,11 +5,12 @@ import beast.base.core.Input;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.core.Log;
 import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.FilteredAlignment;
 import beast.base.evolution.alignment.Sequence;
 import beast.base.evolution.alignment.TaxonSet;
 import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.datatype.IntegerData;
 import beast.base.evolution.sitemodel.SiteModel;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.pkgmgmt.BEASTClassLoader;
 import beast.pkgmgmt.PackageManager;
@@ -17,13 +18,15 @@ import beast.base.util.Randomizer;
 import feast.nexus.CharactersBlock;
 import feast.nexus.NexusBuilder;
 import feast.nexus.TaxaBlock;
-import sciphy.evolution.substitutionmodel.SciPhySubstitutionModel;
+import sciphy.util.NexusAlignmentWriter;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.SplittableRandom;
 
 
 @Description("A more flexible alignment simulator adapted from Tim Vaughan's feast implementation")
@@ -39,10 +42,10 @@ public class SimulatedSciPhyAlignment extends Alignment {
             "Site model to use in simulation.",
             Input.Validate.REQUIRED);
 
-    //TODO rename number of targets
     public Input<Integer> nrOfTargetsInput = new Input<>(
             "numberOfTargets",
-            "Number of targets to simulate.",
+            "Number of targets to simulate. Targets are concatenated in the alignment, target t taking sites " +
+                    "t * arrayLength + 1 to (t + 1) * arrayLength, see getTargetAlignments.",
             Input.Validate.REQUIRED);
 
     public Input<Integer> arrayLengthInput = new Input<>(
@@ -55,6 +58,12 @@ public class SimulatedSciPhyAlignment extends Alignment {
             Input.Validate.OPTIONAL);
 
 
+    public Input<Long> seedInput = new Input<>(
+            "seed",
+            "Seed of the random stream the simulation draws from, independent of the BEAST seed; the same seed gives " +
+                    "the alignment of the first replicate of SimulatedSciPhyReplicates (default the BEAST random " +
+                    "number generator).");
+
     public Input<String> outputFileNameInput = new Input<>(
             "outputFileName",
             "Name of file (if any) simulated alignment should be saved to.");
@@ -68,6 +77,8 @@ public class SimulatedSciPhyAlignment extends Alignment {
 
     private String ancestralSeqStr;
 
+    private List<FilteredAlignment> targetAlignments;
+
     public SimulatedSciPhyAlignment() {
         sequenceInput.setRule(Input.Validate.OPTIONAL);
     }
@@ -79,9 +90,10 @@ public class SimulatedSciPhyAlignment extends Alignment {
         siteModel = siteModelInput.get();
         Log.info.println("category rates: " + Arrays.toString(siteModel.getCategoryRates(tree.getRoot())));
 
-        numberOfTargets = 1; //TODO rewrite for arbitrary #targets
+        numberOfTargets = nrOfTargetsInput.get();
         arrayLength = arrayLengthInput.get();
         sequences.clear();
+        targetAlignments = null;
 
         if (originInput.get() != null) {
             originHeight = originInput.get().getValue();
@@ -89,12 +101,31 @@ public class SimulatedSciPhyAlignment extends Alignment {
 
         grabDataType();
 
-        simulate();
+        // without a seed, random numbers are drawn from the BEAST random number generator, so that simulations
+        // follow the BEAST seed; with a seed, from the stream SimulatedSciPhyReplicates gives its first replicate
+        SciPhySequenceSimulator simulator = new SciPhySequenceSimulator(tree, siteModel, arrayLength, numberOfTargets,
+                originHeight);
+        int[] barcodes;
+        if (seedInput.get() != null) {
+            barcodes = simulator.simulate(new SplittableRandom(seedInput.get()).split());
+        } else {
+            barcodes = simulator.simulate(Randomizer::nextLong);
+        }
+        String[] taxonNames = simulator.getTaxonNames();
+
+        setSequences(barcodes, taxonNames, simulator.getSiteCount());
 
         super.initAndValidate();
 
-        // Write simulated alignment to disk if required
-        if (outputFileNameInput.get() != null) {
+        // Write simulated alignment to disk if required, integer data straight from the barcodes
+        if (outputFileNameInput.get() != null && dataType instanceof IntegerData) {
+            try {
+                NexusAlignmentWriter.write(outputFileNameInput.get(), taxonNames, barcodes, simulator.getSiteCount());
+            } catch (IOException ex) {
+                throw new RuntimeException("Error writing to file "
+                        + outputFileNameInput.get() + ".");
+            }
+        } else if (outputFileNameInput.get() != null) {
             try (PrintStream pstream = new PrintStream(outputFileNameInput.get())) {
                 NexusBuilder nb = new NexusBuilder();
                 nb.append(new TaxaBlock(new TaxonSet(this)));
@@ -108,122 +139,40 @@ public class SimulatedSciPhyAlignment extends Alignment {
     }
 
     /**
-     * Perform actual sequence simulation.
+     * Set the sequences of the alignment from the simulated barcodes.
      */
-    private void simulate() {
-        int nTaxa = tree.getLeafNodeCount();
-
-        SciPhySubstitutionModel substModel = (SciPhySubstitutionModel) siteModel.getSubstitutionModel();
-
-        double[] transitionProbs = substModel.getInsertProbabilities();
-
-        int[][] alignment = new int[nTaxa][arrayLength];
-
-        Node root = tree.getRoot();
-
-        int[] rootSequence = new int[arrayLength];
-
-        if (originHeight != 0) {
-            // then parent sequence is sequence at origin and we evolve sequence first down to the root
-            double deltaT = originHeight - root.getHeight();
-            double clockRate = siteModel.getRateForCategory(0, root);
-            Log.info.println("clock rates: " + clockRate);
-
-            int nPossibleInserts = arrayLength;
-            long nPotentialInserts = Randomizer.nextPoisson(deltaT * clockRate);
-
-            int insertionIndex = 0;
-
-            // Add potential inserts while there are still possible insertion positions
-            while (nPossibleInserts > 0 && nPotentialInserts > 0) {
-
-                int newInsertion = Randomizer.randomChoicePDF(transitionProbs) + 1;
-                rootSequence[insertionIndex] = newInsertion;
-
-                insertionIndex++;
-                nPossibleInserts--;
-                nPotentialInserts--;
-            }
-        }
+    private void setSequences(int[] barcodes, String[] taxonNames, int siteCount) {
 
         //ancestralSeqStr = dataType.encodingToString(parentSequence);
 
-        traverse(root, rootSequence,
-                transitionProbs,
-                alignment);
-
-        for (int leafIdx = 0; leafIdx < nTaxa; leafIdx++) {
-            String seqString = dataType.encodingToString(alignment[leafIdx]);
-
-            String taxonName;
-            if (tree.getNode(leafIdx).getID() != null)
-                taxonName = tree.getNode(leafIdx).getID();
-            else
-                taxonName = "t" + leafIdx;
+        int[] leafBarcode = new int[siteCount];
+        for (int leafIdx = 0; leafIdx < taxonNames.length; leafIdx++) {
+            System.arraycopy(barcodes, leafIdx * siteCount, leafBarcode, 0, siteCount);
+            String seqString = dataType.encodingToString(leafBarcode);
 
-            sequenceInput.setValue(new Sequence(taxonName, seqString), this);
+            sequenceInput.setValue(new Sequence(taxonNames[leafIdx], seqString), this);
         }
     }
 
     /**
-     * Traverse a tree, simulating a sequence alignment down it.
-     *
-     * @param node            Node of the tree
-     * @param parentSequence  Sequence at the parent node in the tree
-     * @param transitionProbs transition probabilities
-     * @param regionAlignment alignment for particular region
+     * @return one alignment per target, filtering the sites of that target from the simulated alignment, e.g. as data
+     * for MultiBarcodeTreeLikelihood
      */
-    private void traverse(Node node,
-                          int[] parentSequence,
-                          double[] transitionProbs,
-                          int[][] regionAlignment) {
-
-
-        // ignore categories so far
-
-        for (Node child : node.getChildren()) {
-
-            double deltaT = node.getHeight() - child.getHeight();
-            double clockRate = siteModel.getRateForCategory(0, child);
-
-            // Draw characters on child sequence
-            int[] childSequence = parentSequence.clone();
-
-            // find site where next insertion could happen, i.e. the next unedited state '0'
-            int insertionIndex = 0;
-            while ((insertionIndex < arrayLength) && (childSequence[insertionIndex] != 0)) {
-                insertionIndex++;
-            }
-
-            if (insertionIndex == arrayLength) {
-                // then sequence is fully edited, no further simulation necessary
-                ;
-            } else {
-                // sample number of new insertions
-                int nPossibleInserts = arrayLength - insertionIndex;
-                long nPotentialInserts = Randomizer.nextPoisson(deltaT * clockRate);
-
-                // Add potential inserts while there are still possible insertion positions
-                while (nPossibleInserts > 0 && nPotentialInserts > 0) {
-
-                    int newInsertion = Randomizer.randomChoicePDF(transitionProbs) + 1;
-                    childSequence[insertionIndex] = newInsertion;
-
-                    insertionIndex++;
-                    nPossibleInserts--;
-                    nPotentialInserts--;
+    public List<FilteredAlignment> getTargetAlignments() {
+
+        if (targetAlignments == null) {
+            targetAlignments = new ArrayList<>(numberOfTargets);
+            for (int target = 0; target < numberOfTargets; target++) {
+                FilteredAlignment targetAlignment = new FilteredAlignment();
+                targetAlignment.initByName("data", this,
+                        "filter", (target * arrayLength + 1) + "-" + ((target + 1) * arrayLength));
+                if (getID() != null) {
+                    targetAlignment.setID(getID() + ".target" + target);
                 }
-            }
-
-            if (child.isLeaf()) {
-                System.arraycopy(childSequence, 0,
-                        regionAlignment[child.getNr()], 0, childSequence.length);
-            } else {
-                traverse(child, childSequence,
-                        transitionProbs,
-                        regionAlignment);
+                targetAlignments.add(targetAlignment);
             }
         }
+        return targetAlignments;
     }
 
     /**
@@ -0,0 +1,204 @@
+package sciphy.evolution.simulation;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.datatype.IntegerData;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Runnable;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import feast.nexus.CharactersBlock;
+import feast.nexus.NexusBuilder;
+import feast.nexus.TaxaBlock;
+import sciphy.util.NexusAlignmentWriter;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+@Description("Simulates replicate sciphy alignments down one tree in parallel, and writes each replicate to its own " +
+        "nexus file. Every replicate draws from its own random stream, split from the seed, so that the replicates are " +
+        "independent and the same seed gives the same alignments whatever the number of threads.")
+public class SimulatedSciPhyReplicates extends Runnable {
+
+    public Input<Tree> treeInput = new Input<>(
+            "tree",
+            "Tree down which to simulate sequence evolution.",
+            Input.Validate.REQUIRED);
+
+    public Input<SiteModel> siteModelInput = new Input<>(
+            "siteModel",
+            "Site model to use in simulation.",
+            Input.Validate.REQUIRED);
+
+    public Input<Integer> arrayLengthInput = new Input<>(
+            "arrayLength",
+            "Number of insertions to add per site",
+            Input.Validate.REQUIRED);
+
+    public Input<Integer> nrOfTargetsInput = new Input<>(
+            "numberOfTargets",
+            "Number of targets to simulate, concatenated in each alignment (default 1).",
+            1);
+
+    public Input<RealParameter> originInput = new Input<>(
+            "origin", "Start of the process, usually the experiment",
+            Input.Validate.OPTIONAL);
+
+    public Input<Integer> nrOfReplicatesInput = new Input<>(
+            "replicates",
+            "Number of replicate alignments to simulate.",
+            Input.Validate.REQUIRED);
+
+    public Input<Long> seedInput = new Input<>(
+            "seed",
+            "Seed from which the random streams of the replicates are split (default the BEAST seed).");
+
+    public Input<Integer> maxNrOfThreadsInput = new Input<>(
+            "threads",
+            "maximum number of threads to use, if less than 1 the number of threads of BEAST is used (default -1)",
+            -1);
+
+    public Input<String> outputFileNameInput = new Input<>(
+            "outputFileName",
+            "Name of the files simulated alignments are saved to, with %d for the replicate number, " +
+                    "e.g. alignment.%d.nexus",
+            Input.Validate.REQUIRED);
+
+    public Input<DataType.Base> userDataTypeInput = new Input<>(
+            "userDataType",
+            "Data type of the simulated alignments (default integer data)");
+
+    private Tree tree;
+    private int nrOfReplicates;
+    private String outputFileName;
+    private DataType.Base dataType;
+
+    private SciPhySequenceSimulator simulator;
+    private String[] taxonNames;
+
+    @Override
+    public void initAndValidate() {
+
+        tree = treeInput.get();
+        nrOfReplicates = nrOfReplicatesInput.get();
+        if (nrOfReplicates < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Number of replicates has to be positive, not %d", nrOfReplicates));
+        }
+
+        outputFileName = outputFileNameInput.get();
+        if (nrOfReplicates > 1 && String.format(outputFileName, 0).equals(String.format(outputFileName, 1))) {
+            throw new IllegalArgumentException(String.format(
+                    "Output file name %s has to contain %%d for the replicate number", outputFileName));
+        }
+
+        dataType = userDataTypeInput.get() != null ? userDataTypeInput.get() : new IntegerData();
+
+        double originHeight = 0.0;
+        if (originInput.get() != null) {
+            originHeight = originInput.get().getValue();
+        }
+        simulator = new SciPhySequenceSimulator(tree, siteModelInput.get(), arrayLengthInput.get(),
+                nrOfTargetsInput.get(), originHeight);
+        taxonNames = simulator.getTaxonNames();
+    }
+
+    @Override
+    public void run() throws Exception {
+
+        long seed = seedInput.get() != null ? seedInput.get() : Randomizer.getSeed();
+
+        // streams are split in replicate order, so that replicate r always gets the same stream
+        SplittableRandom seedRandom = new SplittableRandom(seed);
+        List<Callable<Object>> replicateCallers = new ArrayList<>(nrOfReplicates);
+        for (int replicate = 0; replicate < nrOfReplicates; replicate++) {
+            final int r = replicate;
+            final SplittableRandom random = seedRandom.split();
+            replicateCallers.add(() -> {
+                writeReplicate(r, simulator.simulate(random));
+                return null;
+            });
+        }
+
+        int threadCount = maxNrOfThreadsInput.get() > 0 ? maxNrOfThreadsInput.get() : ProgramStatus.m_nThreads;
+        threadCount = Math.max(1, Math.min(threadCount, nrOfReplicates));
+
+        if (threadCount == 1) {
+            for (Callable<Object> replicateCaller : replicateCallers) {
+                replicateCaller.call();
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+                Thread thread = new Thread(runnable, "sciphy-replicate-simulation");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                for (Future<Object> future : executor.invokeAll(replicateCallers)) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        Log.info.println("Simulated " + nrOfReplicates + " replicate alignments with seed " + seed);
+    }
+
+    /**
+     * Write the barcodes of one replicate, as returned by SciPhySequenceSimulator.simulate, to its nexus file.
+     * Integer data is streamed straight from the barcodes, other data types go through an alignment.
+     */
+    protected void writeReplicate(int replicate, int[] barcodes) {
+
+        String fileName = String.format(outputFileName, replicate);
+        int siteCount = simulator.getSiteCount();
+
+        if (dataType instanceof IntegerData) {
+            try {
+                NexusAlignmentWriter.write(fileName, taxonNames, barcodes, siteCount);
+            } catch (IOException ex) {
+                throw new RuntimeException("Error writing to file " + fileName + ".");
+            }
+            return;
+        }
+
+        int[] leafBarcode = new int[siteCount];
+        Alignment alignment = new Alignment();
+        for (int leafIdx = 0; leafIdx < taxonNames.length; leafIdx++) {
+            System.arraycopy(barcodes, leafIdx * siteCount, leafBarcode, 0, siteCount);
+            alignment.sequenceInput.setValue(new Sequence(taxonNames[leafIdx], dataType.encodingToString(leafBarcode)),
+                    alignment);
+        }
+        alignment.userDataTypeInput.setValue(dataType, alignment);
+        alignment.initAndValidate();
+
+        try (PrintStream pstream = new PrintStream(fileName)) {
+            NexusBuilder nb = new NexusBuilder();
+            nb.append(new TaxaBlock(new TaxonSet(alignment)));
+            nb.append(new CharactersBlock(alignment));
+            nb.write(pstream);
+        } catch (FileNotFoundException ex) {
+            throw new RuntimeException("Error writing to file " + fileName + ".");
+        }
+    }
+}
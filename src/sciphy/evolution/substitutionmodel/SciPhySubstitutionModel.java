@@ -11,8 +11,6 @@ import beast.base.evolution.datatype.DataType;
 import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.evolution.tree.Node;
-import org.apache.commons.math.distribution.PoissonDistributionImpl;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -30,6 +28,7 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
      */
     protected RealParameter editProbabilities;
     double[] editProbs;
+    double[] logEditProbs;
 
     @Override
     public void initAndValidate() {
@@ -37,7 +36,7 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
         super.initAndValidate();
         // Get edit probabilities and check correct input
         editProbabilities = editProbabilitiesInput.get();
-        editProbs = editProbabilities.getDoubleValues();
+        updateEditProbabilities();
 
         double insertProbabilitiesSum = Arrays.stream(editProbs).sum();
         if (Math.abs(insertProbabilitiesSum - 1.0) > 1e-6) {
@@ -65,51 +64,168 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
      */
     public double getSequenceTransitionProbability(final List<Integer> startSequence, final List<Integer> endSequence, double distance, int arrayLength) {
 
-        List<Integer> startState = new ArrayList(startSequence);
-        List<Integer> endState = new ArrayList(endSequence);
+        int[] startState = new int[startSequence.size()];
+        for (int i = 0; i < startState.length; i++) {
+            startState[i] = startSequence.get(i);
+        }
+        int[] endState = new int[endSequence.size()];
+        for (int i = 0; i < endState.length; i++) {
+            endState[i] = endSequence.get(i);
+        }
+        return getSequenceTransitionProbability(startState, endState, distance, arrayLength);
+    }
 
-        //create an unedited state to subtract from sequences to get only edited sites
-        List<Integer> zero = Arrays.asList(0);
+    /**
+     * This function calculates the probability of transitioning between 2 sequences states in given evolutionary time (distance)
+     * (with potentially multiple edits having happened). Edits are ordered, so the start sequence is a prefix of the end
+     * sequence and the new inserts are the edits of the end sequence following that prefix.
+     * This does not allocate, as it is evaluated for every pair of states in the likelihood calculation.
+     *
+     * @param startSequence  is a sequence state at a parent node
+     * @param endSequence is a sequence state at a child node
+     */
+    public double getSequenceTransitionProbability(final int[] startSequence, final int[] endSequence, double distance, int arrayLength) {
 
-        //removing all unedited sites from each sequence
-        startState.removeAll(zero);
-        endState.removeAll(zero);
+        //count edited sites of the start sequence
+        int nrOfStartEdits = 0;
+        for (int site : startSequence) {
+            if (site != 0) {
+                nrOfStartEdits++;
+            }
+        }
+
+        //edits of the end sequence that follow the start sequence are the edits introduced
+        int nrOfEndEdits = 0;
+        double logInsertProbability = 0.0;
+        for (int site : endSequence) {
+            if (site != 0) {
+                if (nrOfEndEdits >= nrOfStartEdits) {
+                    //inserts are in {1, ..., nInserts}; insertProbabilities are in {0, ..., nInserts - 1}
+                    logInsertProbability += logEditProbs[site - 1];
+                }
+                nrOfEndEdits++;
+            }
+        }
+
+        return getTransitionProbability(nrOfStartEdits, nrOfEndEdits, distance, arrayLength, logInsertProbability);
+    }
+
+    /**
+     * This function calculates the probability of transitioning between 2 sequences states in given evolutionary time (distance)
+     * in closed form. Because edits are ordered, the end state is the start state extended by the new inserts, so the
+     * transition probability only depends on the number of new inserts, the number of unedited sites left in the start
+     * state, the distance and the probability of the new inserts.
+     *
+     * @param startPrefixLength number of edits in the start state
+     * @param endPrefixLength number of edits in the end state
+     * @param logInsertProbability log of the product of the edit probabilities of the new inserts
+     */
+    public double getTransitionProbability(int startPrefixLength, int endPrefixLength, double distance, int arrayLength, double logInsertProbability) {
 
         //if endState is less edited than the start state, violates ordering
-        if(startState.size() > endState.size() ){
+        if (startPrefixLength > endPrefixLength) {
             return 0.0;
         }
 
-        //subtracting start sequence from end sequence: edits introduced
-        // if start state has identical elements to end state remove
-        startState.forEach(endState::remove);
-        List<Integer> newInserts = endState;
+        int nrOfNewInserts = endPrefixLength - startPrefixLength;
 
         //available positions are targetBClength length - number of edited positions
-        int nrOfPossibleInserts = arrayLength - startState.size();
-
-        //initialise the poisson distribution with mean rate * distance
-        org.apache.commons.math.distribution.PoissonDistribution poissonDistribution = new PoissonDistributionImpl(distance);
+        int nrOfPossibleInserts = arrayLength - startPrefixLength;
 
         //calculate the transition probability for the case where all available positions are edited in
         // This is the absorbing state in the poisson process
         // P(max) = 1- sum(P(n)) * probability of this insert combination
-        if(newInserts.size() == nrOfPossibleInserts ) {
+        if (nrOfNewInserts == nrOfPossibleInserts) {
 
-            return calculateAbsorbingStateProbability(poissonDistribution, nrOfPossibleInserts) * combinedInsertProbabilities(newInserts);
+            return calculateAbsorbingStateProbability(distance, nrOfPossibleInserts) * Math.exp(logInsertProbability);
         }
         //calculate the transition probability for the case where a #edits < available positions
         //this is a regular draw from the poisson process * probability of this insert combination
-        else if (newInserts.size() < nrOfPossibleInserts){
+        else if (nrOfNewInserts < nrOfPossibleInserts) {
+
+            return getPoissonProbability(distance, nrOfNewInserts) * Math.exp(logInsertProbability);
+
+        } else {
+
+            throw new RuntimeException("Error! Number of new inserts is larger than nr of possible inserts!");
+        }
+    }
+
+    /**
+     * This function calculates the closed form transition probability from precomputed poisson probabilities of the
+     * branch, see getPoissonProbabilities.
+     *
+     * @param poissonProbabilities probabilities of k edits on the branch, for k = 0, ..., arrayLength
+     * @param absorbingStateProbabilities probabilities of at least k edits on the branch, for k = 0, ..., arrayLength
+     */
+    public double getTransitionProbability(int startPrefixLength, int endPrefixLength, int arrayLength,
+                                           double[] poissonProbabilities, double[] absorbingStateProbabilities, double logInsertProbability) {
+
+        double editCountProbability = getEditCountProbability(startPrefixLength, endPrefixLength, arrayLength,
+                poissonProbabilities, absorbingStateProbabilities);
+        return editCountProbability == 0.0 ? 0.0 : editCountProbability * Math.exp(logInsertProbability);
+    }
+
+    /**
+     * This function calculates the probability of the number of new inserts between two states from precomputed
+     * poisson probabilities of the branch, i.e. the transition probability without the probability of the inserts.
+     */
+    public double getEditCountProbability(int startPrefixLength, int endPrefixLength, int arrayLength,
+                                          double[] poissonProbabilities, double[] absorbingStateProbabilities) {
+
+        //if endState is less edited than the start state, violates ordering
+        if (startPrefixLength > endPrefixLength) {
+            return 0.0;
+        }
+
+        int nrOfNewInserts = endPrefixLength - startPrefixLength;
+        int nrOfPossibleInserts = arrayLength - startPrefixLength;
+
+        if (nrOfNewInserts == nrOfPossibleInserts) {
+
+            return absorbingStateProbabilities[nrOfPossibleInserts];
+        }
+        else if (nrOfNewInserts < nrOfPossibleInserts) {
 
-            return poissonDistribution.probability(newInserts.size()) * combinedInsertProbabilities(newInserts);
+            return poissonProbabilities[nrOfNewInserts];
 
-        } else{
+        } else {
 
             throw new RuntimeException("Error! Number of new inserts is larger than nr of possible inserts!");
         }
     }
 
+    /**
+     * This function fills the probabilities of k edits and of at least k edits in a poisson process with mean distance,
+     * for k = 0, ..., length - 1 of the arrays. Probabilities are obtained by the recurrence P(i) = P(i-1) * distance / i,
+     * so that a branch only requires a single pass and no allocation.
+     */
+    public static void getPoissonProbabilities(double distance, double[] poissonProbabilities, double[] absorbingStateProbabilities) {
+
+        double poissonProbability = Math.exp(-distance);
+        double cumulativeProbability = 0.0;
+
+        for (int k = 0; k < poissonProbabilities.length; k++) {
+            poissonProbabilities[k] = poissonProbability;
+            absorbingStateProbabilities[k] = getTailProbability(distance, k, poissonProbability, cumulativeProbability);
+            cumulativeProbability += poissonProbability;
+            poissonProbability = poissonProbability * distance / (k + 1);
+        }
+    }
+
+    /**
+     * This function calculates the probability of n edits in a poisson process with mean distance, using the
+     * recurrence P(i) = P(i-1) * distance / i, which avoids instantiating a poisson distribution.
+     */
+    public static double getPoissonProbability(double distance, int n) {
+
+        double probability = Math.exp(-distance);
+        for (int i = 1; i <= n; i++) {
+            probability = probability * distance / i;
+        }
+        return probability;
+    }
+
 
 
     /**
@@ -132,6 +248,45 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
     }
 
 
+    /**
+     * This function calculates the probability of reaching/editing the last unedited position in the barcode with nbrOfPossibleInserts
+     * available positions, for a poisson process with mean distance
+     *
+     * @param nbrOfPossibleInserts  is the number of available positions until the absorbing state is reached
+     */
+    public static double calculateAbsorbingStateProbability(double distance, int nbrOfPossibleInserts) {
+
+        double cumulativeProbability = 0.0;
+        double poissonProbability = Math.exp(-distance);
+
+        for (int i = 0; i < nbrOfPossibleInserts; i++) {
+            cumulativeProbability += poissonProbability;
+            poissonProbability = poissonProbability * distance / (i + 1);
+        }
+
+        return getTailProbability(distance, nbrOfPossibleInserts, poissonProbability, cumulativeProbability);
+    }
+
+    /**
+     * This function calculates the probability of at least k edits, given the probability of k edits and the probability
+     * of less than k edits. On short branches 1 - P(N < k) cancels out, so the tail is then summed up directly as
+     * P(k) * (1 + distance / (k+1) + distance^2 / ((k+1)(k+2)) + ...), which converges fast as distance < (k+1)/2.
+     */
+    private static double getTailProbability(double distance, int k, double poissonProbability, double cumulativeProbability) {
+
+        if (k == 0 || 2 * distance >= k + 1) {
+            return 1.0 - cumulativeProbability;
+        }
+
+        double tailProbability = 0.0;
+        double term = poissonProbability;
+        for (int i = k + 1; term > tailProbability * 1e-17; i++) {
+            tailProbability += term;
+            term = term * distance / i;
+        }
+        return tailProbability;
+    }
+
     /**
      * Function to obtain the probability factor induced by insert frequencies
      * combineInsertProbabilities
@@ -157,6 +312,22 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
         return editProbs;
     }
 
+    /**
+     * Function to obtain the array of log insert probabilities
+     *
+     */
+    public double[] getLogInsertProbabilities() {
+        return logEditProbs;
+    }
+
+    protected void updateEditProbabilities() {
+        editProbs = editProbabilities.getDoubleValues();
+        logEditProbs = new double[editProbs.length];
+        for (int i = 0; i < editProbs.length; i++) {
+            logEditProbs[i] = Math.log(editProbs[i]);
+        }
+    }
+
 
 
     /**
@@ -164,7 +335,7 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
      */
     @Override
     public void store() {
-        editProbs = editProbabilities.getDoubleValues();
+        updateEditProbabilities();
         super.store();
     }
 
@@ -173,7 +344,7 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
      */
     @Override
     public void restore() {
-        editProbs = editProbabilities.getDoubleValues();
+        updateEditProbabilities();
         super.restore();
 
     }
@@ -181,7 +352,7 @@ public class SciPhySubstitutionModel extends SubstitutionModel.Base {
     @Override
     protected boolean requiresRecalculation() {
         // we only get here if something is dirty
-        editProbs = editProbabilities.getDoubleValues();
+        updateEditProbabilities();
         return true;
     }
 
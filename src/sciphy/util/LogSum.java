@@ -9,20 +9,25 @@ public class LogSum {
      * without having to exponentiate all elements
      *
      * @param la array of log
-     * @param la size
+     * @param numElements number of elements of la to sum up
      */
     public static double logSum(double la[], int numElements) {
         // Assume index_of_max() finds the maximum element
         // in the array and returns its index
         double max = la[0];
         int index = 0;
-        for (int i = 0; i < la.length; i++) {
+        for (int i = 0; i < numElements; i++) {
             if (max < la[i]) {
                 max = la[i];
                 index = i;
             }
         }
 
+        // all elements are log(0)
+        if (max == Double.NEGATIVE_INFINITY) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
         double sum_exp = 0;
         for (int i = 0; i < numElements; i++) {
             if (i == index) {
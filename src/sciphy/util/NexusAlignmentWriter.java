@@ -0,0 +1,145 @@
+package sciphy.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams an integer alignment to a NEXUS file, straight from the states through a buffered channel.
+ * The taxa and characters blocks are the ones feast's NexusBuilder writes for an alignment of IntegerData, but no
+ * sequence strings or Sequence objects are built on the way, so memory stays at the size of the buffer.
+ */
+public class NexusAlignmentWriter {
+
+    protected static final int BUFFER_SIZE = 1 << 16;
+
+    protected final FileChannel channel;
+    protected final ByteBuffer buffer;
+
+    protected NexusAlignmentWriter(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Write an integer alignment to a NEXUS file.
+     *
+     * @param fileName    name of the NEXUS file
+     * @param taxonNames  names of the taxa, in the order of their sequences
+     * @param states      states of all sequences, sequence i at i * siteCount, ..., (i + 1) * siteCount - 1
+     * @param siteCount   number of sites per sequence
+     */
+    public static void write(String fileName, String[] taxonNames, int[] states, int siteCount) throws IOException {
+
+        if (states.length != taxonNames.length * siteCount) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid states: expected %d taxa of %d sites, not %d states", taxonNames.length, siteCount,
+                    states.length));
+        }
+
+        NexusAlignmentWriter writer = new NexusAlignmentWriter(fileName);
+        try {
+            writer.writeAlignment(taxonNames, states, siteCount);
+        } finally {
+            writer.channel.close();
+        }
+    }
+
+    protected void writeAlignment(String[] taxonNames, int[] states, int siteCount) throws IOException {
+
+        put("#NEXUS\n\n");
+
+        put("begin taxa;\n");
+        put("\tdimensions ntax=");
+        putInt(taxonNames.length);
+        put(";\n");
+        put("\ttaxlabels");
+        for (String taxonName : taxonNames) {
+            put(" ");
+            put(taxonName);
+        }
+        put(";\n");
+        put("end;\n\n");
+
+        put("begin characters;\n");
+        put("\tdimensions nchar=");
+        putInt(siteCount);
+        put(";\n");
+        put("\tformat datatype=integer;\n");
+        put("\tmatrix \n");
+        for (int taxon = 0; taxon < taxonNames.length; taxon++) {
+            put("\t\t");
+            put(taxonNames[taxon]);
+            put(" ");
+            int offset = taxon * siteCount;
+            for (int site = 0; site < siteCount; site++) {
+                if (site > 0) {
+                    putByte((byte) ',');
+                }
+                putInt(states[offset + site]);
+            }
+            put(taxon < taxonNames.length - 1 ? "\n" : ";\n");
+        }
+        put("end;\n");
+
+        flush();
+    }
+
+    protected void put(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int from = 0;
+        while (from < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - from);
+            buffer.put(bytes, from, length);
+            from += length;
+        }
+    }
+
+    protected void putByte(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(b);
+    }
+
+    /**
+     * Write the decimal digits of a state, without going through a String.
+     */
+    protected void putInt(int value) throws IOException {
+        // 11 bytes hold any int, sign included
+        if (buffer.remaining() < 11) {
+            flush();
+        }
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE) {
+                put(Integer.toString(value));
+                return;
+            }
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+            divisor /= 10;
+        }
+    }
+
+    protected void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,143 @@
+package sciphy;
+
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import sciphy.evolution.likelihood.MultiBarcodeTreeLikelihood;
+import sciphy.evolution.likelihood.SciPhyTreeLikelihood;
+import sciphy.evolution.substitutionmodel.SciPhySubstitutionModel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+public class MultiBarcodeLikelihoodTest {
+
+    List<Alignment> alignments;
+    Tree tree1;
+    SiteModel siteM;
+    StrictClockModel clockModel;
+    RealParameter origin;
+
+    @Before
+    public void setUp() {
+
+        //3 barcodes of different lengths on the same tree
+        String newick = "((CHILD1:2,CHILD2:2):3,CHILD3:5)";
+
+        Alignment alignment1 = new Alignment();
+        alignment1.initByName("sequence", new Sequence("CHILD1", "1,2,0,0,0"), "dataType", "integer");
+        alignment1.initByName("sequence", new Sequence("CHILD2", "1,2,2,0,0"), "dataType", "integer");
+        alignment1.initByName("sequence", new Sequence("CHILD3", "2,0,0,0,0"), "dataType", "integer");
+
+        Alignment alignment2 = new Alignment();
+        alignment2.initByName("sequence", new Sequence("CHILD1", "2,1,1,2"), "dataType", "integer");
+        alignment2.initByName("sequence", new Sequence("CHILD2", "2,1,0,0"), "dataType", "integer");
+        alignment2.initByName("sequence", new Sequence("CHILD3", "1,1,0,0"), "dataType", "integer");
+
+        Alignment alignment3 = new Alignment();
+        alignment3.initByName("sequence", new Sequence("CHILD1", "0,0,0,0,0"), "dataType", "integer");
+        alignment3.initByName("sequence", new Sequence("CHILD2", "1,0,0,0,0"), "dataType", "integer");
+        alignment3.initByName("sequence", new Sequence("CHILD3", "2,2,2,1,1"), "dataType", "integer");
+
+        alignments = Arrays.asList(alignment1, alignment2, alignment3);
+
+        tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment1, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        //create a sub model with values
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter editprobs = new RealParameter("0.8 0.2");
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0 ");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", editprobs, "frequencies", frequencies);
+
+        //site model with rate categories
+        siteM = new SiteModel();
+        siteM.initByName("gammaCategoryCount", 4, "shape", new RealParameter("0.5"), "substModel", substitutionModel);
+
+        RealParameter meanRate = new RealParameter("0.5");
+        clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", meanRate);
+        origin = new RealParameter("6");
+    }
+
+    /**
+     * @return sum of the log likelihoods of the barcodes, each calculated by a fresh likelihood on the current tree
+     */
+    private double sumOfBarcodeLogLikelihoods() {
+        double logP = 0.0;
+        for (Alignment alignment : alignments) {
+            SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel,
+                    "origin", origin, "arrayLength", new IntegerParameter("" + alignment.getSiteCount()), "useScaling", true);
+            logP += likelihood.calculateLogP();
+        }
+        return logP;
+    }
+
+    @Test
+    public void testMultiBarcodeLikelihoodIsSumOfBarcodes() {
+
+        double logPExpected = sumOfBarcodeLogLikelihoods();
+
+        MultiBarcodeTreeLikelihood multiLikelihood = new MultiBarcodeTreeLikelihood();
+        multiLikelihood.initByName("data", alignments, "tree", tree1,
+                "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "useScaling", true, "threads", 2);
+
+        assertEquals(logPExpected, multiLikelihood.calculateLogP(), 1e-10);
+
+    }
+
+    @Test
+    public void testMultiBarcodeLikelihoodStoreRestore() {
+
+        //the barcodes share the poisson tables filled by the first barcode, these have to be right after a rejected
+        //height change and the next evaluation
+        MultiBarcodeTreeLikelihood multiLikelihood = new MultiBarcodeTreeLikelihood();
+        multiLikelihood.initByName("data", alignments, "tree", tree1,
+                "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "useScaling", true,
+                "poissonCacheSize", 10);
+
+        State state = new State();
+        state.initByName("stateNode", tree1);
+        state.initialise();
+        state.setPosterior(multiLikelihood);
+        double logP = state.robustlyCalcPosterior(multiLikelihood);
+
+        //rejected change of the height of the cherry
+        state.store(1);
+        tree1.getRoot().getChild(0).setHeight(2.5);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        assertEquals(sumOfBarcodeLogLikelihoods(), multiLikelihood.calculateLogP(), 1e-10);
+        state.restore();
+        state.restoreCalculationNodes();
+        state.setEverythingDirty(false);
+        assertEquals(logP, multiLikelihood.getCurrentLogP(), 0.0);
+
+        //accepted change
+        state.store(2);
+        tree1.getRoot().getChild(0).setHeight(4.0);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        double logPChanged = multiLikelihood.calculateLogP();
+        state.acceptCalculationNodes();
+        state.setEverythingDirty(false);
+
+        assertEquals(sumOfBarcodeLogLikelihoods(), logPChanged, 1e-10);
+    }
+}
@@ -0,0 +1,74 @@
+package sciphy;
+
+import org.junit.Test;
+import sciphy.util.NexusAlignmentWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static junit.framework.Assert.assertEquals;
+
+public class NexusAlignmentWriterTest {
+
+    @Test
+    public void testWriteIntegerAlignment() throws IOException {
+
+        String[] taxonNames = {"CHILD1", "CHILD2"};
+        int[] states = {1, 12, 0, 0,
+                        1, 2, 103, 0};
+
+        File file = File.createTempFile("sciphy", ".nexus");
+        file.deleteOnExit();
+        NexusAlignmentWriter.write(file.getPath(), taxonNames, states, 4);
+
+        // same layout as the files written by feast's NexusBuilder, see expectedAlignment.nexus
+        String expected = "#NEXUS\n\n" +
+                "begin taxa;\n" +
+                "\tdimensions ntax=2;\n" +
+                "\ttaxlabels CHILD1 CHILD2;\n" +
+                "end;\n\n" +
+                "begin characters;\n" +
+                "\tdimensions nchar=4;\n" +
+                "\tformat datatype=integer;\n" +
+                "\tmatrix \n" +
+                "\t\tCHILD1 1,12,0,0\n" +
+                "\t\tCHILD2 1,2,103,0;\n" +
+                "end;\n";
+        assertEquals(expected, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testWriteBeyondBuffer() throws IOException {
+
+        // more states than fit in the buffer at once
+        int nTaxa = 50;
+        int siteCount = 1000;
+        String[] taxonNames = new String[nTaxa];
+        int[] states = new int[nTaxa * siteCount];
+        for (int i = 0; i < nTaxa; i++) {
+            taxonNames[i] = "t" + i;
+            for (int j = 0; j < siteCount; j++) {
+                states[i * siteCount + j] = (i + j) % 14;
+            }
+        }
+
+        File file = File.createTempFile("sciphy", ".nexus");
+        file.deleteOnExit();
+        NexusAlignmentWriter.write(file.getPath(), taxonNames, states, siteCount);
+
+        String[] lines = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).split("\n");
+        // header, taxa block and characters header take 11 lines
+        assertEquals(11 + nTaxa + 1, lines.length);
+        for (int i = 0; i < nTaxa; i++) {
+            String[] fields = lines[11 + i].trim().replace(";", "").split(" ");
+            assertEquals("t" + i, fields[0]);
+            String[] values = fields[1].split(",");
+            assertEquals(siteCount, values.length);
+            for (int j = 0; j < siteCount; j++) {
+                assertEquals(states[i * siteCount + j], Integer.parseInt(values[j]));
+            }
+        }
+    }
+}
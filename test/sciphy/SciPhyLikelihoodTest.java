@@ -1,5 +1,6 @@
 package sciphy;
 
+import beast.base.inference.State;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.alignment.Alignment;
@@ -7,15 +8,16 @@ import beast.base.evolution.alignment.Sequence;
 import beast.base.evolution.branchratemodel.StrictClockModel;
 import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
+import sciphy.evolution.likelihood.PoissonProbabilityCache;
 import sciphy.evolution.likelihood.SciPhyTreeLikelihood;
 import sciphy.evolution.substitutionmodel.SciPhySubstitutionModel;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Arrays;
-import java.util.Hashtable;
 import java.util.List;
 import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.*;
@@ -281,25 +283,26 @@ public class SciPhyLikelihoodTest {
 
         //test ancestral states sets calculations
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
 
         //first calculate states dictionary
         //manually create states:
         List<Integer> allele0 = Arrays.asList(0, 0, 0, 0, 0);
 
-        assertEquals(3, statesDictionary.size());
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(likelihood.getAncestralStates(i));
+        }
 
         //1st leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 1);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 1);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         //root node
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 1);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
     }
 
@@ -344,7 +347,6 @@ public class SciPhyLikelihoodTest {
 
         //test ancestral states sets calculations
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
 
 
         //first calculate states dictionary
@@ -354,26 +356,28 @@ public class SciPhyLikelihoodTest {
         List<Integer> allele1 = Arrays.asList(1, 0, 0, 0, 0);
         List<Integer> allele0 = Arrays.asList(0, 0, 0, 0, 0);
 
-        assertEquals(3, statesDictionary.size());
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(likelihood.getAncestralStates(i));
+        }
 
         //1st leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 4);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele123));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 4);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele123));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 3);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         //root node
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 3);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(2).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
 
     }
@@ -420,7 +424,6 @@ public class SciPhyLikelihoodTest {
 
         //test ancestral states sets calculations
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
 
 
         //first calculate states dictionary
@@ -431,23 +434,25 @@ public class SciPhyLikelihoodTest {
         List<Integer> allele1 = Arrays.asList(1, 0, 0, 0, 0);
         List<Integer> allele0 = Arrays.asList(0, 0, 0, 0, 0);
 
-        assertEquals(3, statesDictionary.size());
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(likelihood.getAncestralStates(i));
+        }
 
         //1st leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 3);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele21));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele2));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 3);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele21));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele2));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         //root node
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 1);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
 
     }
@@ -494,7 +499,6 @@ public class SciPhyLikelihoodTest {
 
         //test ancestral states sets calculations
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
 
 
         //first calculate states dictionary
@@ -506,24 +510,26 @@ public class SciPhyLikelihoodTest {
         List<Integer> allele1 = Arrays.asList(1, 0, 0, 0, 0);
         List<Integer> allele0 = Arrays.asList(0, 0, 0, 0, 0);
 
-        assertEquals(3, statesDictionary.size());
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(likelihood.getAncestralStates(i));
+        }
 
         //1st leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 3);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 4);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele211));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele21));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele2));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 4);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele211));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele21));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele2));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         //root node
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 1);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
 
     }
@@ -570,7 +576,6 @@ public class SciPhyLikelihoodTest {
 
         //test ancestral states sets calculations
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
 
 
         //first calculate states dictionary
@@ -581,23 +586,25 @@ public class SciPhyLikelihoodTest {
         List<Integer> allele1 = Arrays.asList(1, 0, 0, 0, 0);
         List<Integer> allele0 = Arrays.asList(0, 0, 0, 0, 0);
 
-        assertEquals(3, statesDictionary.size());
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(likelihood.getAncestralStates(i));
+        }
 
         //1st leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 2);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 2);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele31));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele3));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 3);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele31));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele3));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         //root node
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 1);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
 
     }
@@ -649,8 +656,9 @@ public class SciPhyLikelihoodTest {
 
         //calculate states dictionary
         likelihood.calculateLogP();
-        Hashtable<Integer, List<List<Integer>>> statesDictionary = likelihood.ancestralStates;
-        assertEquals(5, statesDictionary.size());
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(likelihood.getAncestralStates(i));
+        }
 
         //Manually create states
         List<Integer> allele12 = Arrays.asList(1, 2, 0, 0, 0);
@@ -662,31 +670,31 @@ public class SciPhyLikelihoodTest {
 
         //check the ancestral dictionaries
         //todo find a way to extract node numbers in a way that we know their position in the tree
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(0)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele12));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(0)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(0).size(), 3);
+        assertTrue(likelihood.getAncestralStates(0).contains(allele12));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(0).contains(allele0));
 
         //2nd leaf
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(1)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele11));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(1)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(1).size(), 3);
+        assertTrue(likelihood.getAncestralStates(1).contains(allele11));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(1).contains(allele0));
 
         // node c
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(2)).size(), 3);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele21));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele2));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(2)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(2).size(), 3);
+        assertTrue(likelihood.getAncestralStates(2).contains(allele21));
+        assertTrue(likelihood.getAncestralStates(2).contains(allele2));
+        assertTrue(likelihood.getAncestralStates(2).contains(allele0));
 
         //internal node between a and b
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(3)).size(), 2);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(3)).contains(allele1));
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(3)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(3).size(), 2);
+        assertTrue(likelihood.getAncestralStates(3).contains(allele1));
+        assertTrue(likelihood.getAncestralStates(3).contains(allele0));
 
         //root node a/b/c
-        assertEquals(statesDictionary.get(likelihood.makeCachingIndexStates(4)).size(), 1);
-        assertTrue(statesDictionary.get(likelihood.makeCachingIndexStates(4)).contains(allele0));
+        assertEquals(likelihood.getAncestralStates(4).size(), 1);
+        assertTrue(likelihood.getAncestralStates(4).contains(allele0));
 
 
     }
@@ -734,10 +742,6 @@ public class SciPhyLikelihoodTest {
 
      
         likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength);
-        
-
-        //initialise partialLikelihoods
-        likelihood.partialLikelihoods = new double[2][tree1.getNodeCount()][];
 
         //Manually calc the likelihood for that tree:
 
@@ -765,6 +769,104 @@ public class SciPhyLikelihoodTest {
 
     }
 
+    @Test
+    public void testLikelihoodCherryIdenticalEditsByHand() {
+
+        //Testing the closed form for a cherry of identical leaves against the likelihood calculated by hand
+        String newick = "(CHILD1:5,CHILD2:5)";
+        Sequence a = new Sequence("CHILD1", "1,2,0,0,0");
+        Sequence b = new Sequence("CHILD2", "1,2,0,0,0");
+
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", a, "sequence", b, "dataType", "integer");
+
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        //edit distances of the leaf branches and of the branch from the origin, with clock rate 0.5
+        double d1 = 5 * 0.5;
+        double d0 = (6 - 5) * 0.5;
+
+        //root states are the prefixes of 1,2 of length s; a leaf needs 2 - s inserts, the origin state s inserts
+        double[] leafProbabilities = {
+                d1 * d1 / 2 * Math.exp(-d1) * 0.8 * 0.2,
+                d1 * Math.exp(-d1) * 0.2,
+                Math.exp(-d1)};
+        double[] originProbabilities = {
+                Math.exp(-d0),
+                d0 * Math.exp(-d0) * 0.8,
+                d0 * d0 / 2 * Math.exp(-d0) * 0.8 * 0.2};
+
+        double likelihood = 0.0;
+        for (int s = 0; s < 3; s++) {
+            likelihood += originProbabilities[s] * leafProbabilities[s] * leafProbabilities[s];
+        }
+
+        for (boolean useLogPartials : new boolean[]{false, true}) {
+            SciPhyTreeLikelihood sciphyLikelihood = new SciPhyTreeLikelihood();
+            sciphyLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength, "useLogPartials", useLogPartials);
+            assertEquals(Math.log(likelihood), sciphyLikelihood.calculateLogP(), 1e-12);
+        }
+    }
+
+    @Test
+    public void testLikelihoodCherryLeafInsertProbabilitiesByHand() {
+
+        //Testing the insert probabilities read from the sequence of each leaf against the likelihood calculated by hand
+        String newick = "(CHILD1:5,CHILD2:5)";
+        Sequence a = new Sequence("CHILD1", "1,3,2,0,0");
+        Sequence b = new Sequence("CHILD2", "1,3,3,1,0");
+
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", a, "sequence", b, "dataType", "integer");
+
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0 0");
+        RealParameter editprobs = new RealParameter("0.5 0.2 0.3");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", editprobs, "frequencies", frequencies);
+
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 0, "substModel", substitutionModel);
+
+        //edit distances of the leaf branches and of the branch from the origin, with clock rate 0.5
+        double d1 = 5 * 0.5;
+        double d0 = (6 - 5) * 0.5;
+
+        //root states are the prefixes of the shared 1,3 of length s; the leaves carry the remaining inserts
+        double[] originProbabilities = {
+                Math.exp(-d0),
+                d0 * Math.exp(-d0) * 0.5,
+                d0 * d0 / 2 * Math.exp(-d0) * 0.5 * 0.3};
+        double[] leaf1Probabilities = {
+                d1 * d1 * d1 / 6 * Math.exp(-d1) * 0.5 * 0.3 * 0.2,
+                d1 * d1 / 2 * Math.exp(-d1) * 0.3 * 0.2,
+                d1 * Math.exp(-d1) * 0.2};
+        double[] leaf2Probabilities = {
+                d1 * d1 * d1 * d1 / 24 * Math.exp(-d1) * 0.5 * 0.3 * 0.3 * 0.5,
+                d1 * d1 * d1 / 6 * Math.exp(-d1) * 0.3 * 0.3 * 0.5,
+                d1 * d1 / 2 * Math.exp(-d1) * 0.3 * 0.5};
+
+        double likelihood = 0.0;
+        for (int s = 0; s < 3; s++) {
+            likelihood += originProbabilities[s] * leaf1Probabilities[s] * leaf2Probabilities[s];
+        }
+
+        for (boolean useLogPartials : new boolean[]{false, true}) {
+            SciPhyTreeLikelihood sciphyLikelihood = new SciPhyTreeLikelihood();
+            sciphyLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength, "useLogPartials", useLogPartials);
+            assertEquals(Math.log(likelihood), sciphyLikelihood.calculateLogP(), 1e-12);
+        }
+    }
+
     @Test
     public void testLikelihoodCherry2Shared1DifferentInsert() {
 
@@ -811,10 +913,6 @@ public class SciPhyLikelihoodTest {
 
         likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength);
 
-
-        //initialise partialLikelihoods
-        likelihood.partialLikelihoods = new double[2][tree1.getNodeCount()][];
-
         //Manually calc the likelihood for that tree:
 
         //internal node partials:
@@ -884,10 +982,6 @@ public class SciPhyLikelihoodTest {
 
         likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength);
 
-
-        //initialise partialLikelihoods
-        likelihood.partialLikelihoods = new double[2][tree1.getNodeCount()][];
-
         //Manually calc the likelihood for that tree:
 
         //internal node partials:
@@ -953,10 +1047,6 @@ public class SciPhyLikelihoodTest {
 
         likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength);
 
-
-        //initialise partialLikelihoods
-        likelihood.partialLikelihoods = new double[2][tree1.getNodeCount()][];
-
         //Manually calc the likelihood for that tree:
 
         //internal node partials:
@@ -1031,10 +1121,6 @@ public class SciPhyLikelihoodTest {
 
         likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength);
 
-
-        //initialise partialLikelihoods
-        likelihood.partialLikelihoods = new double[2][tree1.getNodeCount()][];
-
         //Manually calc the likelihood for that tree:
 
         //internal node partials:
@@ -1062,4 +1148,446 @@ public class SciPhyLikelihoodTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testLikelihoodLogPartials() {
+
+        //Testing that likelihoods calculated from log space partials match the likelihoods from partials, with
+        //and without origin, on a tree with an identical cherry
+        String newick = "(((CHILD1:0.5,CHILD2:0.5)INTERNAL1:0.5,CHILD3:1)INTERNAL2:1,CHILD4:2.0)";
+
+        Sequence a = new Sequence("CHILD1", "1,1,0,0,0");
+        Sequence b = new Sequence("CHILD2", "1,1,0,0,0");
+        Sequence c = new Sequence("CHILD3", "1,2,0,0,0");
+        Sequence d = new Sequence("CHILD4", "2,0,0,0,0");
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", a, "sequence", b, "sequence", c, "sequence", d, "dataType", "integer");
+
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        for (boolean withOrigin : new boolean[]{false, true}) {
+
+            SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+            SciPhyTreeLikelihood logLikelihood = new SciPhyTreeLikelihood();
+            if (withOrigin) {
+                likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength);
+                logLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength, "useLogPartials", true);
+            } else {
+                likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "arrayLength", arraylength);
+                logLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "arrayLength", arraylength, "useLogPartials", true);
+            }
+
+            assertEquals(likelihood.calculateLogP(), logLikelihood.calculateLogP(), 1e-10);
+        }
+    }
+
+    @Test
+    public void testMinusInfinityForImpossibleInserts() {
+
+        //insert 2 has probability 0, so it can only be observed if it happened before the root, in the prefix
+        //shared by all leaves
+        String newick = "((CHILD1:1,CHILD2:1)INTERNAL:1,CHILD3:2.0)";
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter editprobs = new RealParameter("1.0 0.0");
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", editprobs, "frequencies", frequencies);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 0, "substModel", substitutionModel);
+
+        String[][] sequences = {{"2,1,0,0,0", "2,1,1,0,0", "2,0,0,0,0"}, {"2,1,0,0,0", "2,1,2,0,0", "2,0,0,0,0"}};
+        boolean[] feasible = {true, false};
+
+        for (int i = 0; i < sequences.length; i++) {
+
+            Alignment alignment = new Alignment();
+            alignment.initByName("sequence", new Sequence("CHILD1", sequences[i][0]), "sequence", new Sequence("CHILD2", sequences[i][1]),
+                    "sequence", new Sequence("CHILD3", sequences[i][2]), "dataType", "integer");
+            Tree tree1 = new TreeParser();
+            tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                    newick,
+                    "adjustTipHeights", false, "offset", 0);
+
+            SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "arrayLength", arraylength);
+            double logP = likelihood.calculateLogP();
+            assertEquals(feasible[i], logP > Double.NEGATIVE_INFINITY);
+            assertFalse(Double.isNaN(logP));
+
+            //with origin the unedited root ancestor has to be edited with insert 2
+            SciPhyTreeLikelihood likelihoodOrigin = new SciPhyTreeLikelihood();
+            likelihoodOrigin.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength);
+            assertEquals(Double.NEGATIVE_INFINITY, likelihoodOrigin.calculateLogP());
+        }
+    }
+
+    @Test
+    public void testLikelihoodOriginArrayLength4() {
+
+        //Testing the origin partial for a barcode with 4 sites
+        String newick = "(CHILD1:1,CHILD2:1)";
+        Sequence a = new Sequence("CHILD1", "1,2,0,0");
+        Sequence b = new Sequence("CHILD2", "1,0,0,0");
+
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", a, "sequence", b, "dataType", "integer");
+
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0");
+        RealParameter editprobs = new RealParameter("0.8 0.2");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substitutionModel.initByName("editProbabilities", editprobs, "frequencies", frequencies);
+
+        SiteModel siteM = new SiteModel();
+        siteM.initByName("gammaCategoryCount", 0, "substModel", substitutionModel);
+
+        RealParameter meanRate = new RealParameter("0.5");
+        StrictClockModel clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", meanRate);
+        RealParameter origin = new RealParameter("3");
+        IntegerParameter arrayLength = new IntegerParameter("4");
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength);
+
+        //Manually calc the likelihood for that tree:
+        List<Integer> allele0 = Arrays.asList(0, 0, 0, 0);
+        List<Integer> allele1 = Arrays.asList(1, 0, 0, 0);
+        List<Integer> allele12 = Arrays.asList(1, 2, 0, 0);
+        double clockRate = 0.5;
+
+        //root partials
+        double partial0Root = substitutionModel.getSequenceTransitionProbability(allele0, allele12, 1 * clockRate, 4) * substitutionModel.getSequenceTransitionProbability(allele0, allele1, 1 * clockRate, 4);
+        double partial1Root = substitutionModel.getSequenceTransitionProbability(allele1, allele12, 1 * clockRate, 4) * substitutionModel.getSequenceTransitionProbability(allele1, allele1, 1 * clockRate, 4);
+
+        //origin
+        double partialOrigin = partial0Root * substitutionModel.getSequenceTransitionProbability(allele0, allele0, 2 * clockRate, 4)
+                + partial1Root * substitutionModel.getSequenceTransitionProbability(allele0, allele1, 2 * clockRate, 4);
+
+        assertEquals(Math.log(partialOrigin), likelihood.calculateLogP(), 1e-12);
+    }
+
+    @Test
+    public void testLikelihoodEditProbabilitiesChangeWhenEverythingIsDirty() {
+
+        //when everything is dirty, as on resume or in robustlyCalcPosterior, the alignment is dirty as well and the
+        //insert probabilities of the leaves have to be updated with it
+        String newick = "((CHILD1:1,CHILD2:1)INTERNAL:1,CHILD3:2.0)";
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", new Sequence("CHILD1", "1,2,0,0,0"), "sequence", new Sequence("CHILD2", "1,1,2,0,0"),
+                "sequence", new Sequence("CHILD3", "2,0,0,0,0"), "dataType", "integer");
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        RealParameter editprobs = new RealParameter("0.8 0.2");
+        SiteModel siteModel = siteModelWithEditProbabilities(editprobs);
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength);
+
+        State state = new State();
+        state.initByName("stateNode", tree1, "stateNode", editprobs);
+        state.initialise();
+        state.setPosterior(likelihood);
+        state.robustlyCalcPosterior(likelihood);
+
+        editprobs.setValue(0, 0.3);
+        editprobs.setValue(1, 0.7);
+        double logP = state.robustlyCalcPosterior(likelihood);
+
+        SciPhyTreeLikelihood freshLikelihood = new SciPhyTreeLikelihood();
+        freshLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModelWithEditProbabilities(new RealParameter("0.3 0.7")),
+                "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength);
+        assertEquals(freshLikelihood.calculateLogP(), logP, 1e-12);
+    }
+
+    @Test
+    public void testPoissonProbabilityCache(){
+
+        PoissonProbabilityCache cache = new PoissonProbabilityCache(2);
+        double[] poissonProbabilities = new double[5];
+        double[] absorbingStateProbabilities = new double[5];
+        double[] expectedPoissonProbabilities = new double[5];
+        double[] expectedAbsorbingStateProbabilities = new double[5];
+
+        for (double distance : new double[]{0.5, 0.001, 0.5, 2.0, 0.001, 0.5}) {
+            cache.getPoissonProbabilities(distance, poissonProbabilities, absorbingStateProbabilities);
+            SciPhySubstitutionModel.getPoissonProbabilities(distance, expectedPoissonProbabilities, expectedAbsorbingStateProbabilities);
+            for (int k = 0; k < 5; k++) {
+                assertEquals(expectedPoissonProbabilities[k], poissonProbabilities[k], 0.0);
+                assertEquals(expectedAbsorbingStateProbabilities[k], absorbingStateProbabilities[k], 0.0);
+            }
+        }
+
+        //0.5 is found once, 0.001 is evicted by 2.0 and 0.5 by 0.001
+        assertEquals(1, cache.getHits());
+        assertEquals(5, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testLikelihoodScalingStoreRestore() {
+
+        //8 leaves with 20 different inserts each, so that partials are scaled from the internal nodes above cherries
+        String newick = "(((t0:4,t1:4):4,(t2:4,t3:4):4):4,((t4:4,t5:4):4,(t6:4,t7:4):4):4)";
+        Alignment alignment = distinctInsertsAlignment(8, 20);
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        SiteModel siteModel = siteModelWithEditProbabilities(new RealParameter("0.1 0.1 0.1 0.1 0.1 0.1 0.1 0.1 0.1 0.1"));
+        IntegerParameter arrayLength = new IntegerParameter("20");
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "arrayLength", arrayLength, "useScaling", true);
+
+        State state = new State();
+        state.initByName("stateNode", tree1);
+        state.initialise();
+        state.setPosterior(likelihood);
+        double logP = state.robustlyCalcPosterior(likelihood);
+
+        //rejected move of the parent of a cherry, which changes the scaling sums up to the root
+        proposeChange(state, likelihood, () -> tree1.getRoot().getChild(0).getChild(0).setHeight(5.0), false);
+        assertEquals(logP, likelihood.getCurrentLogP(), 0.0);
+
+        //the scaling sums of the other nodes have to be the stored ones
+        double logPChanged = proposeChange(state, likelihood, () -> tree1.getRoot().getChild(1).getChild(1).setHeight(3.0), true);
+
+        SciPhyTreeLikelihood freshLikelihood = new SciPhyTreeLikelihood();
+        freshLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "arrayLength", arrayLength, "useScaling", true);
+        assertEquals(freshLikelihood.calculateLogP(), logPChanged, 1e-10);
+    }
+
+    @Test
+    public void testLikelihoodRateChanges() {
+
+        //poisson probabilities are kept per branch time and category rate, and are not stored; they have to be
+        //refilled after a rejected clock rate change and after a change of the category rates
+        String newick = "(((CHILD1:0.5,CHILD2:0.5)INTERNAL1:0.5,CHILD3:1)INTERNAL2:1,CHILD4:2.0)";
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", new Sequence("CHILD1", "1,1,0,0,0"), "sequence", new Sequence("CHILD2", "1,1,2,0,0"),
+                "sequence", new Sequence("CHILD3", "1,2,0,0,0"), "sequence", new Sequence("CHILD4", "2,0,0,0,0"), "dataType", "integer");
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        RealParameter mutationRate = new RealParameter("1.0");
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 4, "shape", new RealParameter("0.5"), "mutationRate", mutationRate,
+                "substModel", siteM.getSubstitutionModel());
+        RealParameter clockRate = new RealParameter("0.5");
+        StrictClockModel strictClockModel = new StrictClockModel();
+        strictClockModel.initByName("clock.rate", clockRate);
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", strictClockModel, "origin", origin, "arrayLength", arraylength);
+
+        State state = new State();
+        state.initByName("stateNode", tree1, "stateNode", clockRate, "stateNode", mutationRate);
+        state.initialise();
+        state.setPosterior(likelihood);
+        double logP = state.robustlyCalcPosterior(likelihood);
+
+        //rejected clock rate change, followed by a height change that only updates the nodes above it
+        proposeChange(state, likelihood, () -> clockRate.setValue(0.8), false);
+        assertEquals(logP, likelihood.getCurrentLogP(), 0.0);
+        double logPHeight = proposeChange(state, likelihood, () -> tree1.getRoot().getChild(0).getChild(0).setHeight(0.7), true);
+
+        SciPhyTreeLikelihood freshLikelihood = new SciPhyTreeLikelihood();
+        freshLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", strictClockModel, "origin", origin, "arrayLength", arraylength);
+        assertEquals(freshLikelihood.calculateLogP(), logPHeight, 1e-12);
+
+        //accepted change of the rates of all categories
+        double logPRates = proposeChange(state, likelihood, () -> mutationRate.setValue(1.5), true);
+
+        freshLikelihood = new SciPhyTreeLikelihood();
+        freshLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", strictClockModel, "origin", origin, "arrayLength", arraylength);
+        assertEquals(freshLikelihood.calculateLogP(), logPRates, 1e-12);
+    }
+
+    @Test
+    public void testLikelihoodFixedTopology() {
+
+        //with a fixed topology all internal nodes are recalculated from the ancestral states of the first evaluation,
+        //which has to give the likelihood of the full traversal
+        String newick = "(((CHILD1:0.5,CHILD2:0.5)INTERNAL1:0.5,CHILD3:1)INTERNAL2:1,CHILD4:2.0)";
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", new Sequence("CHILD1", "1,1,0,0,0"), "sequence", new Sequence("CHILD2", "1,1,2,0,0"),
+                "sequence", new Sequence("CHILD3", "1,2,0,0,0"), "sequence", new Sequence("CHILD4", "2,0,0,0,0"), "dataType", "integer");
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        RealParameter editprobs = new RealParameter("0.8 0.2");
+        SiteModel siteModel = siteModelWithEditProbabilities(editprobs);
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength, "fixedTopology", true);
+
+        State state = new State();
+        state.initByName("stateNode", tree1, "stateNode", editprobs);
+        state.initialise();
+        state.setPosterior(likelihood);
+        state.robustlyCalcPosterior(likelihood);
+
+        double logPHeight = proposeChange(state, likelihood, () -> tree1.getRoot().getChild(0).getChild(0).setHeight(0.7), true);
+        SciPhyTreeLikelihood freshLikelihood = new SciPhyTreeLikelihood();
+        freshLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength, "fixedTopology", false);
+        assertEquals(freshLikelihood.calculateLogP(), logPHeight, 1e-12);
+
+        double logPEditProbabilities = proposeChange(state, likelihood, () -> {
+            editprobs.setValue(0, 0.4);
+            editprobs.setValue(1, 0.6);
+        }, true);
+        freshLikelihood = new SciPhyTreeLikelihood();
+        freshLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength, "fixedTopology", false);
+        assertEquals(freshLikelihood.calculateLogP(), logPEditProbabilities, 1e-12);
+
+        //everything dirty, as on resume, is not a change of topology
+        assertEquals(logPEditProbabilities, state.robustlyCalcPosterior(likelihood), 1e-12);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testExceptionForTopologyChangeWithFixedTopology() {
+
+        String newick = "((CHILD1:1,CHILD2:1)INTERNAL1:1,(CHILD3:1,CHILD4:1)INTERNAL2:1)";
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", new Sequence("CHILD1", "1,1,0,0,0"), "sequence", new Sequence("CHILD2", "1,1,2,0,0"),
+                "sequence", new Sequence("CHILD3", "1,2,0,0,0"), "sequence", new Sequence("CHILD4", "2,0,0,0,0"), "dataType", "integer");
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+        likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteM, "branchRateModel", clockModel, "origin", origin, "arrayLength", arraylength, "fixedTopology", true);
+
+        State state = new State();
+        state.initByName("stateNode", tree1);
+        state.initialise();
+        state.setPosterior(likelihood);
+        state.robustlyCalcPosterior(likelihood);
+
+        //exchange CHILD2 and CHILD3 between the cherries, as the exchange operator does
+        proposeChange(state, likelihood, () -> {
+            Node internal1 = tree1.getRoot().getChild(0);
+            Node internal2 = tree1.getRoot().getChild(1);
+            Node child2 = internal1.getChild(1);
+            Node child3 = internal2.getChild(0);
+            internal1.removeChild(child2);
+            internal2.removeChild(child3);
+            internal1.addChild(child3);
+            internal2.addChild(child2);
+            internal1.makeDirty(Tree.IS_FILTHY);
+            internal2.makeDirty(Tree.IS_FILTHY);
+            child2.makeDirty(Tree.IS_FILTHY);
+            child3.makeDirty(Tree.IS_FILTHY);
+        }, true);
+    }
+
+    @Test
+    public void testLikelihoodThreads() {
+
+        //nodes at the same depth are updated in parallel, on a tree with 4 waves of internal nodes
+        String newick = "((((t0:1,t1:1):1,t2:2):1,(t3:2,t4:2):1):1,((t5:1,t6:1):2,t7:3):1)";
+        Alignment alignment = distinctInsertsAlignment(8, 20);
+        Tree tree1 = new TreeParser();
+        tree1.initByName("IsLabelledNewick", true, "taxa", alignment, "newick",
+                newick,
+                "adjustTipHeights", false, "offset", 0);
+
+        SiteModel siteModel = siteModelWithEditProbabilities(new RealParameter("0.1 0.1 0.1 0.1 0.1 0.1 0.1 0.1 0.1 0.1"));
+        IntegerParameter arrayLength = new IntegerParameter("20");
+
+        for (String partials : new String[]{"useScaling", "useLogPartials"}) {
+
+            SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength, partials, true,
+                    "threads", 2, "minWaveSize", 1);
+
+            State state = new State();
+            state.initByName("stateNode", tree1);
+            state.initialise();
+            state.setPosterior(likelihood);
+            double logP = state.robustlyCalcPosterior(likelihood);
+
+            SciPhyTreeLikelihood serialLikelihood = new SciPhyTreeLikelihood();
+            serialLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength, partials, true);
+            assertEquals(serialLikelihood.calculateLogP(), logP, 1e-10);
+
+            //a change of the deepest internal node updates one node per wave
+            double logPHeight = proposeChange(state, likelihood, () -> tree1.getRoot().getChild(0).getChild(0).getChild(0).setHeight(0.5), true);
+            serialLikelihood = new SciPhyTreeLikelihood();
+            serialLikelihood.initByName("data", alignment, "tree", tree1, "siteModel", siteModel, "branchRateModel", clockModel, "origin", origin, "arrayLength", arrayLength, partials, true);
+            assertEquals(serialLikelihood.calculateLogP(), logPHeight, 1e-10);
+
+            //back to the original tree for the next mode
+            proposeChange(state, likelihood, () -> tree1.getRoot().getChild(0).getChild(0).getChild(0).setHeight(1.0), true);
+        }
+    }
+
+    /**
+     * @return alignment of leaves t0, t1, ..., each with a different insert at every site, out of 10 inserts
+     */
+    private Alignment distinctInsertsAlignment(int nrOfLeaves, int arrayLength) {
+        Alignment alignment = new Alignment();
+        for (int leaf = 0; leaf < nrOfLeaves; leaf++) {
+            StringBuilder barcode = new StringBuilder();
+            for (int site = 0; site < arrayLength; site++) {
+                barcode.append(site > 0 ? "," : "").append((leaf * 7 + site * 3) % 10 + 1);
+            }
+            alignment.initByName("sequence", new Sequence("t" + leaf, barcode.toString()), "dataType", "integer");
+        }
+        return alignment;
+    }
+
+    private SiteModel siteModelWithEditProbabilities(RealParameter editprobs) {
+        SciPhySubstitutionModel substitutionModel = new SciPhySubstitutionModel();
+        Frequencies frequencies = new Frequencies();
+        StringBuilder stateFrequencies = new StringBuilder("1.0");
+        for (int i = 0; i < editprobs.getDimension(); i++) {
+            stateFrequencies.append(" 0");
+        }
+        frequencies.initByName("frequencies", new RealParameter(stateFrequencies.toString()), "estimate", false);
+        substitutionModel.initByName("editProbabilities", editprobs, "frequencies", frequencies);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 0, "substModel", substitutionModel);
+        return siteModel;
+    }
+
+    /**
+     * Evaluate the likelihood after a change of the state, in the order MCMC evaluates a proposal, and accept or
+     * reject it.
+     *
+     * @return log likelihood of the proposed state
+     */
+    private double proposeChange(State state, SciPhyTreeLikelihood likelihood, Runnable change, boolean accept) {
+        state.store(0);
+        change.run();
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        double logP = likelihood.calculateLogP();
+        if (accept) {
+            state.acceptCalculationNodes();
+        } else {
+            state.restore();
+            state.restoreCalculationNodes();
+        }
+        state.setEverythingDirty(false);
+        return logP;
+    }
+}
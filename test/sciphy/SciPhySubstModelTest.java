@@ -268,6 +268,72 @@ public class SciPhySubstModelTest {
 
     }
 
+    @Test
+    public void testTransitionProbabilitiesIntArray(){
+
+        // Arrange
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0 ");
+        RealParameter editProbabilities = new RealParameter("0.8 0.2");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substModel.initByName( "editProbabilities", editProbabilities, "frequencies" ,frequencies);
+
+        int targetBClength = 5;
+
+        int[] sequence_a = new int[]{2, 1, 0, 0, 0};
+        int[] sequence_b = new int[]{2, 1, 1, 2, 0};
+        int[] sequence_c = new int[]{2, 1, 1, 2, 2};
+
+        // expectedProbability : draw 2 events on a Poisson process bounded to 3
+        // P(2) * (0.8*0.2)
+        org.apache.commons.math.distribution.PoissonDistribution dist = new PoissonDistributionImpl(0.5);
+        Double expectedProbability = dist.probability(2) * 0.8 * 0.2;
+        Double calculatedProbability = substModel.getSequenceTransitionProbability(sequence_a, sequence_b, 0.5, targetBClength);
+        assertEquals(expectedProbability, calculatedProbability, 1e-10);
+
+        // saturation: (1 - P(0) + P(1) + P(2)) * (0.2*0.2*0.8)
+        expectedProbability = 4.6040569494306294E-4;
+        calculatedProbability = substModel.getSequenceTransitionProbability(sequence_a, sequence_c, 0.5, targetBClength);
+        assertEquals(expectedProbability, calculatedProbability, 1e-10);
+
+        // end state less edited than start state
+        calculatedProbability = substModel.getSequenceTransitionProbability(sequence_b, sequence_a, 0.5, targetBClength);
+        assertEquals(0.0, calculatedProbability, 1e-10);
+
+    }
+
+    @Test
+    public void testClosedFormTransitionProbability(){
+
+        // Arrange
+        RealParameter stateFrequencies = new RealParameter("1.0 0 0 ");
+        RealParameter editProbabilities = new RealParameter("0.8 0.2");
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", stateFrequencies, "estimate", false);
+        substModel.initByName( "editProbabilities", editProbabilities, "frequencies" ,frequencies);
+
+        int targetBClength = 5;
+        // reference 2,1,1,2,2; the inserts between two of its prefixes are given as a log probability
+
+        // prefix 2 -> prefix 4 of the reference: P(2) * (0.8*0.2)
+        double logInsertProbability = Math.log(0.8 * 0.2);
+        org.apache.commons.math.distribution.PoissonDistribution dist = new PoissonDistributionImpl(0.5);
+        assertEquals(dist.probability(2) * 0.8 * 0.2,
+                substModel.getTransitionProbability(2, 4, 0.5, targetBClength, logInsertProbability), 1e-10);
+
+        // prefix 2 -> full reference is the absorbing state
+        logInsertProbability = Math.log(0.8 * 0.2 * 0.2);
+        assertEquals(4.6040569494306294E-4,
+                substModel.getTransitionProbability(2, 5, 0.5, targetBClength, logInsertProbability), 1e-10);
+
+        // no new inserts
+        assertEquals(Math.exp(-0.5), substModel.getTransitionProbability(3, 3, 0.5, targetBClength, 0.0), 1e-10);
+
+        // end state less edited than start state
+        assertEquals(0.0, substModel.getTransitionProbability(4, 2, 0.5, targetBClength, 0.0), 1e-10);
+
+    }
+
     // TODO test this elsewhere: the test below fails, but is irrelevant assuming that only correct sequences of states will ever be proposed, as tested in LikelihoodTests
 //    @Test
 //    public void test0ProbabilityForForbiddenTransition(){
@@ -331,4 +397,30 @@ public class SciPhySubstModelTest {
          p4 = dist.probability(4);
         assertEquals(  4.162502e-14, p4, 0.00001);
     }
-}
\ No newline at end of file
+
+    // Validate the per branch poisson probabilities obtained by recurrence against the same values by Rpois.
+    // The probabilities of at least k edits are compared to ppois(k - 1, lower.tail = FALSE), relatively to their
+    // magnitude, as they are tiny on short branches.
+
+    @Test
+    public void testBranchPoissonProbabilitiesAgainstR(){
+
+        double[] poissonProbabilities = new double[5];
+        double[] absorbingStateProbabilities = new double[5];
+
+        SciPhySubstitutionModel.getPoissonProbabilities(0.5, poissonProbabilities, absorbingStateProbabilities);
+        assertEquals( 0.6065307, poissonProbabilities[0], 0.00001);
+        assertEquals( 0.07581633, poissonProbabilities[2], 0.00001);
+        assertEquals( 0.001579507, poissonProbabilities[4], 0.00001);
+        assertEquals( 1.0, absorbingStateProbabilities[0], 1e-15);
+        assertEquals( 0.3934693, absorbingStateProbabilities[1], 0.00001);
+        assertEquals( 0.0143877, absorbingStateProbabilities[3], 0.00001);
+
+        SciPhySubstitutionModel.getPoissonProbabilities(0.001, poissonProbabilities, absorbingStateProbabilities);
+        assertEquals( 4.995002e-07, poissonProbabilities[2], 1e-13);
+        assertEquals( 1.0, absorbingStateProbabilities[3] / 1.665417e-10, 1e-6);
+        assertEquals( 1.0, absorbingStateProbabilities[4] / 4.163335e-14, 1e-6);
+        assertEquals( absorbingStateProbabilities[4],
+                SciPhySubstitutionModel.calculateAbsorbingStateProbability(0.001, 4), 0.0);
+    }
+}
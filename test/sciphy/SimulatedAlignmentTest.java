@@ -1,34 +1,51 @@
 package sciphy;
 
 import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.FilteredAlignment;
+import beast.base.evolution.alignment.Sequence;
 import beast.base.evolution.datatype.DataType;
 import beast.base.evolution.datatype.IntegerData;
 import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
-import beast.base.util.Randomizer;
 import beastfx.app.inputeditor.AlignmentImporter;
+import org.junit.Before;
 import org.junit.Test;
+import sciphy.evolution.likelihood.MultiBarcodeTreeLikelihood;
+import sciphy.evolution.likelihood.SciPhyTreeLikelihood;
+import sciphy.evolution.simulation.SciPhySequenceSimulator;
 import sciphy.evolution.simulation.SimulatedSciPhyAlignment;
+import sciphy.evolution.simulation.SimulatedSciPhyReplicates;
 import sciphy.evolution.substitutionmodel.SciPhySubstitutionModel;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 public class SimulatedAlignmentTest {
 
+    Tree tree;
+    SiteModel siteM;
+
     // set up
-    @Test
-    public void testSimulationOnCherry() {
+    @Before
+    public void setUp() {
 
-        Integer sequenceLength = 1;
-        String outputFileName = "test/simAl.sciphy";
         String newick = "((CHILD1:5,CHILD2:5)INTERNAL:1):0.0";
 
-        Tree tree = new TreeParser();
+        tree = new TreeParser();
         tree.initByName(
                 "IsLabelledNewick", true,
                 "newick", newick,
@@ -42,27 +59,31 @@ public class SimulatedAlignmentTest {
         submodel.initByName("editProbabilities", insertrates, "frequencies", frequencies);
 
         //site model
-        SiteModel siteM = new SiteModel();
+        siteM = new SiteModel();
         RealParameter mutationRate = new RealParameter("10");
         siteM.initByName("gammaCategoryCount", 0,
                 "substModel", submodel, "mutationRate", mutationRate);
+    }
 
+    @Test
+    public void testSimulationOnCherry() {
+
+        String outputFileName = "test/simAl.sciphy";
         DataType integerData = new IntegerData();
 
-        // simulate
-        Randomizer.setSeed(2);
+        // simulate, with a seed of its own so that the alignment does not depend on the BEAST random number generator
         SimulatedSciPhyAlignment simAlignment = new SimulatedSciPhyAlignment();
         simAlignment.initByName("tree", tree,
                 "siteModel", siteM,
-                "sequenceLength", sequenceLength,
                 "arrayLength", 100,
                 "numberOfTargets", 1,
+                "seed", 2L,
                 "outputFileName", outputFileName,
                 "userDataType", integerData
         );
 
         AlignmentImporter expectedAlignment = new sciphy.util.NexusImporter();
-        beast.base.evolution.alignment.Alignment alignment = (Alignment) expectedAlignment.loadFile(new File("test/sciphy/expectedAlignment.sciphy")).get(0);
+        beast.base.evolution.alignment.Alignment alignment = (Alignment) expectedAlignment.loadFile(new File("test/sciphy/expectedAlignment.nexus")).get(0);
 
         assertEquals(alignment.getSequenceAsString("CHILD1"),
                 simAlignment.getSequenceAsString("CHILD1"));
@@ -72,5 +93,267 @@ public class SimulatedAlignmentTest {
 
     }
 
+    @Test
+    public void testReplicatesDoNotDependOnThreads() throws Exception {
+
+        Path directory = Files.createTempDirectory("sciphy");
+        int nrOfReplicates = 6;
+
+        for (int threads : new int[]{1, 4}) {
+            SimulatedSciPhyReplicates replicates = new SimulatedSciPhyReplicates();
+            replicates.initByName("tree", tree,
+                    "siteModel", siteM,
+                    "arrayLength", 100,
+                    "replicates", nrOfReplicates,
+                    "seed", 2L,
+                    "threads", threads,
+                    "outputFileName", directory.resolve("replicate" + threads + ".%d.nexus").toString());
+            replicates.run();
+        }
+
+        for (int replicate = 0; replicate < nrOfReplicates; replicate++) {
+            byte[] serial = readReplicate(directory, 1, replicate);
+            byte[] parallel = readReplicate(directory, 4, replicate);
+            assertTrue("replicate " + replicate + " differs between 1 and 4 threads", Arrays.equals(serial, parallel));
+        }
+
+        // the same seed gives the first replicate as a single alignment
+        String fileName = directory.resolve("alignment.nexus").toString();
+        new File(fileName).deleteOnExit();
+        SimulatedSciPhyAlignment simAlignment = new SimulatedSciPhyAlignment();
+        simAlignment.initByName("tree", tree,
+                "siteModel", siteM,
+                "arrayLength", 100,
+                "numberOfTargets", 1,
+                "seed", 2L,
+                "outputFileName", fileName,
+                "userDataType", new IntegerData()
+        );
+        assertTrue(Arrays.equals(readReplicate(directory, 1, 0), Files.readAllBytes(new File(fileName).toPath())));
+    }
+
+    @Test
+    public void testMultipleTargets() {
+
+        int nrOfTargets = 3;
+        int arrayLength = 10;
+
+        Tree tree4 = new TreeParser();
+        tree4.initByName(
+                "IsLabelledNewick", true,
+                "newick", "((CHILD1:0.2,CHILD2:0.2)INTERNAL1:0.3,(CHILD3:0.4,CHILD4:0.4)INTERNAL2:0.1)",
+                "adjustTipHeights", false);
+        RealParameter origin = new RealParameter("0.6");
+
+        SimulatedSciPhyAlignment simAlignment = new SimulatedSciPhyAlignment();
+        simAlignment.initByName("tree", tree4,
+                "siteModel", siteM,
+                "arrayLength", arrayLength,
+                "numberOfTargets", nrOfTargets,
+                "origin", origin,
+                "seed", 3L,
+                "userDataType", new IntegerData()
+        );
+
+        assertEquals(nrOfTargets * arrayLength, simAlignment.getSiteCount());
+
+        List<FilteredAlignment> targetAlignments = simAlignment.getTargetAlignments();
+        assertEquals(nrOfTargets, targetAlignments.size());
+
+        List<Alignment> expectedTargetAlignments = new ArrayList<>();
+        for (int target = 0; target < nrOfTargets; target++) {
+            FilteredAlignment targetAlignment = targetAlignments.get(target);
+            assertEquals(arrayLength, targetAlignment.getSiteCount());
+
+            Alignment expectedTargetAlignment = new Alignment();
+            for (int taxon = 0; taxon < simAlignment.getTaxonCount(); taxon++) {
+
+                // edits of a target are contiguous from the start of its block
+                boolean edited = true;
+                StringBuilder barcode = new StringBuilder();
+                for (int site = 0; site < arrayLength; site++) {
+                    int state = simAlignment.getPattern(taxon, simAlignment.getPatternIndex(target * arrayLength + site));
+                    assertTrue(edited || state == 0);
+                    edited = state != 0;
+
+                    assertEquals(state, targetAlignment.getPattern(taxon, targetAlignment.getPatternIndex(site)));
+                    barcode.append(site > 0 ? "," : "").append(state);
+                }
+                expectedTargetAlignment.initByName("sequence",
+                        new Sequence(simAlignment.getTaxaNames().get(taxon), barcode.toString()), "dataType", "integer");
+            }
+            expectedTargetAlignments.add(expectedTargetAlignment);
+        }
+
+        // the likelihood of the target alignments is the one of alignments of their sites
+        double logPExpected = 0.0;
+        for (Alignment alignment : expectedTargetAlignments) {
+            SciPhyTreeLikelihood likelihood = new SciPhyTreeLikelihood();
+            likelihood.initByName("data", alignment, "tree", tree4, "siteModel", siteM, "origin", origin,
+                    "arrayLength", new IntegerParameter(String.valueOf(arrayLength)));
+            logPExpected += likelihood.calculateLogP();
+        }
+        MultiBarcodeTreeLikelihood multiLikelihood = new MultiBarcodeTreeLikelihood();
+        multiLikelihood.initByName("data", new ArrayList<>(targetAlignments), "tree", tree4, "siteModel", siteM,
+                "origin", origin);
+        assertEquals(logPExpected, multiLikelihood.calculateLogP(), 1e-10);
+    }
+
+    @Test
+    public void testNrOfEditsIsPoisson() {
+
+        // checks the simulator against the edit model itself rather than a stored alignment
+        Tree cherry = new TreeParser();
+        cherry.initByName(
+                "IsLabelledNewick", true,
+                "newick", "(CHILD1:5,CHILD2:5)",
+                "adjustTipHeights", false);
+
+        SciPhySubstitutionModel submodel = new SciPhySubstitutionModel();
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", new RealParameter("1.0 0 0"), "estimate", false);
+        submodel.initByName("editProbabilities", new RealParameter("0.8 0.2"), "frequencies", frequencies);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 0, "substModel", submodel, "mutationRate", new RealParameter("0.2"));
+
+        // origin at height 7: the edits of a leaf are poisson with mean (7 - 5) * 0.2 + 5 * 0.2, and the array is
+        // long enough that hardly any of them is lost
+        int arrayLength = 20;
+        double mean = 1.4;
+        int nrOfReplicates = 20000;
+        SciPhySequenceSimulator simulator = new SciPhySequenceSimulator(cherry, siteModel, arrayLength, 7.0);
+        SplittableRandom random = new SplittableRandom(5);
+
+        double[] sums = new double[cherry.getLeafNodeCount()];
+        double[] sumsOfSquares = new double[cherry.getLeafNodeCount()];
+        for (int replicate = 0; replicate < nrOfReplicates; replicate++) {
+            int[] barcodes = simulator.simulate(random);
+            for (int leaf = 0; leaf < sums.length; leaf++) {
+                int nrOfEdits = 0;
+                for (int site = 0; site < arrayLength; site++) {
+                    if (barcodes[leaf * arrayLength + site] != 0) {
+                        nrOfEdits++;
+                    }
+                }
+                sums[leaf] += nrOfEdits;
+                sumsOfSquares[leaf] += nrOfEdits * nrOfEdits;
+            }
+        }
+
+        // the mean and the variance of a poisson distribution are equal
+        for (int leaf = 0; leaf < sums.length; leaf++) {
+            double sampleMean = sums[leaf] / nrOfReplicates;
+            double sampleVariance = sumsOfSquares[leaf] / nrOfReplicates - sampleMean * sampleMean;
+            assertEquals(mean, sampleMean, 0.03);
+            assertEquals(mean, sampleVariance, 0.06);
+        }
+    }
+
+    @Test
+    public void testInsertsFromAliasTable() {
+
+        // with zero probabilities, and with probabilities that leave rounding errors in the alias table
+        String[] editProbabilities = {"0.0 0.5 0.0 0.3 0.2",
+                "0.1 0.1 0.1 0.1 0.1 0.0 0.1 0.1 0.1 0.1 0.1",
+                "0.7 0.1 0.1 0.1",
+                "0.0 0.3333333333333333 0.3333333333333333 0.3333333333333333"};
+        int arrayLength = 1000;
+        int nrOfReplicates = 2000;
+        SplittableRandom random = new SplittableRandom(4);
+
+        for (String editProbabilitiesString : editProbabilities) {
+
+            RealParameter editProbs = new RealParameter(editProbabilitiesString);
+            StringBuilder freqs = new StringBuilder("1.0");
+            for (int i = 0; i < editProbs.getDimension(); i++) {
+                freqs.append(" 0");
+            }
+            SciPhySubstitutionModel submodel = new SciPhySubstitutionModel();
+            Frequencies frequencies = new Frequencies();
+            frequencies.initByName("frequencies", new RealParameter(freqs.toString()), "estimate", false);
+            submodel.initByName("editProbabilities", editProbs, "frequencies", frequencies);
+            SiteModel siteModel = new SiteModel();
+            siteModel.initByName("gammaCategoryCount", 0, "substModel", submodel, "mutationRate", new RealParameter("10"));
 
+            // about 50 edits per leaf branch, far from filling the array, so every edit is kept
+            SciPhySequenceSimulator simulator = new SciPhySequenceSimulator(tree, siteModel, arrayLength, 0.0);
+            int[] counts = new int[editProbs.getDimension() + 1];
+            int nrOfInserts = 0;
+            for (int replicate = 0; replicate < nrOfReplicates; replicate++) {
+                for (int state : simulator.simulate(random)) {
+                    if (state != 0) {
+                        counts[state]++;
+                        nrOfInserts++;
+                    }
+                }
+            }
+
+            // inserts are 1, ..., nInserts
+            for (int insert = 1; insert < counts.length; insert++) {
+                double editProb = editProbs.getValue(insert - 1);
+                if (editProb == 0.0) {
+                    assertEquals(0, counts[insert]);
+                } else {
+                    assertEquals(editProb, (double) counts[insert] / nrOfInserts, 0.005);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSimulationOnDeepCaterpillar() throws InterruptedException {
+
+        // a caterpillar of 1e5 leaves, deeper than a recursive walk over the tree could go
+        int nrOfLeaves = 100000;
+        Node[] leaves = new Node[nrOfLeaves];
+        for (int i = 0; i < nrOfLeaves; i++) {
+            leaves[i] = new Node();
+            leaves[i].setNr(i);
+            leaves[i].setID("t" + i);
+            leaves[i].setHeight(0.0);
+        }
+        Node subtree = leaves[0];
+        for (int i = 1; i < nrOfLeaves; i++) {
+            Node parent = new Node();
+            parent.setNr(nrOfLeaves + i - 1);
+            parent.setHeight(i * 0.01);
+            parent.addChild(subtree);
+            parent.addChild(leaves[i]);
+            subtree = parent;
+        }
+
+        // BEAST counts and lists the nodes of a tree recursively, so the tree is built on a thread with a large stack
+        final Node root = subtree;
+        Tree[] caterpillar = new Tree[1];
+        Thread treeBuilder = new Thread(null, () -> caterpillar[0] = new Tree(root), "caterpillar", 1L << 28);
+        treeBuilder.start();
+        treeBuilder.join();
+        assertEquals(2 * nrOfLeaves - 1, caterpillar[0].getNodeCount());
+
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 0,
+                "substModel", siteM.getSubstitutionModel(), "mutationRate", new RealParameter("0.002"));
+
+        int arrayLength = 5;
+        SciPhySequenceSimulator simulator = new SciPhySequenceSimulator(caterpillar[0], siteModel, arrayLength, 0.0);
+        int[] barcodes = simulator.simulate(new SplittableRandom(5));
+        assertEquals(nrOfLeaves * arrayLength, barcodes.length);
+
+        // every leaf has a valid barcode, with inserts 1 or 2 contiguous from the start
+        for (int leaf = 0; leaf < nrOfLeaves; leaf++) {
+            boolean edited = true;
+            for (int site = 0; site < arrayLength; site++) {
+                int state = barcodes[leaf * arrayLength + site];
+                assertTrue(state >= 0 && state <= 2);
+                assertTrue(edited || state == 0);
+                edited = state != 0;
+            }
+        }
+    }
+
+    private byte[] readReplicate(Path directory, int threads, int replicate) throws IOException {
+        File file = directory.resolve("replicate" + threads + "." + replicate + ".nexus").toFile();
+        file.deleteOnExit();
+        return Files.readAllBytes(file.toPath());
+    }
 }